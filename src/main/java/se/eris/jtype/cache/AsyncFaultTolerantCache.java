@@ -0,0 +1,163 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A {@link FaultTolerantCache} for asynchronous sources that never blocks the caller.
+ *
+ * Fresh values are returned as completed futures. Stale values are returned as completed futures
+ * and refreshed in the background. Values older than the sync fetch period, and missing values,
+ * are returned when the source completes, falling back to the stale value if the source fails.
+ * All gets of a key while a fetch of it is in flight share that fetch.
+ */
+public final class AsyncFaultTolerantCache<K, V> implements AutoCloseable {
+
+    private final Function<K, CompletionStage<Optional<V>>> source;
+    private final FaultTolerantCache<K, V> cache;
+    private final ConcurrentMap<K, CompletableFuture<Optional<V>>> inFlight = new ConcurrentHashMap<>();
+
+    public static <K, V> AsyncFaultTolerantCache<K, V> of(final Function<K, CompletionStage<Optional<V>>> source, final CacheParameters<K, V> cacheParameters) {
+        return new AsyncFaultTolerantCache<>(source, cacheParameters);
+    }
+
+    private AsyncFaultTolerantCache(final Function<K, CompletionStage<Optional<V>>> source, final CacheParameters<K, V> cacheParameters) {
+        this.source = source;
+        this.cache = FaultTolerantCache.of(key -> join(source.apply(key)), cacheParameters);
+    }
+
+    public CompletableFuture<Optional<V>> get(final K key) {
+        final CacheEntry<V> entry = cache.getEntry(key);
+        final StatsCounter stats = cache.statsCounter();
+        if (entry == null) {
+            stats.recordMiss();
+            return copy(fetch(key));
+        }
+        final long now = cache.now();
+        final Optional<V> value = Optional.ofNullable(cache.valueOf(key, entry));
+        if (entry.isFresh(now)) {
+            stats.recordFreshHit();
+            return CompletableFuture.completedFuture(value);
+        }
+        if (!cache.needsSyncFetch(entry, now)) {
+            stats.recordStaleHit();
+            fetch(key);
+            return CompletableFuture.completedFuture(value);
+        }
+        stats.recordSyncRefresh();
+        return fetch(key).exceptionally(e -> value);
+    }
+
+    /**
+     * @return a blocking view sharing the entries of this cache.
+     */
+    public FaultTolerantCache<K, V> synchronous() {
+        return cache;
+    }
+
+    private CompletableFuture<Optional<V>> fetch(final K key) {
+        final CompletableFuture<Optional<V>> fetch = new CompletableFuture<>();
+        final CompletableFuture<Optional<V>> existing = inFlight.putIfAbsent(key, fetch);
+        if (existing != null) {
+            return existing;
+        }
+        if (!cache.allowFetch()) {
+            inFlight.remove(key, fetch);
+            fetch.completeExceptionally(cache.circuitOpen(key));
+            return fetch;
+        }
+        final long start = System.nanoTime();
+        try {
+            source.apply(key).whenComplete((fetched, e) -> complete(key, fetch, fetched, e, start));
+        } catch (final RuntimeException e) {
+            complete(key, fetch, null, e, start);
+        }
+        return fetch;
+    }
+
+    /**
+     * Stores the fetched value, or records the failure, and completes the shared fetch. The fetch
+     * is always completed and removed, also if storing or the supplier failed action throws, so
+     * that later gets do not share a fetch that never completes.
+     */
+    private void complete(final K key, final CompletableFuture<Optional<V>> fetch, @Nullable final Optional<V> fetched, @Nullable final Throwable e, final long start) {
+        try {
+            if (e != null) {
+                failed(key, fetch, e, start);
+            } else if (fetched == null) {
+                failed(key, fetch, new NullPointerException("Source completed with null for key " + key), start);
+            } else {
+                cache.statsCounter().recordLoad(System.nanoTime() - start);
+                cache.store(key, fetched);
+                inFlight.remove(key, fetch);
+                fetch.complete(fetched);
+            }
+        } catch (final Throwable t) {
+            inFlight.remove(key, fetch);
+            fetch.completeExceptionally(t);
+        }
+    }
+
+    private void failed(final K key, final CompletableFuture<Optional<V>> fetch, final Throwable e, final long start) {
+        cache.statsCounter().recordFailure(System.nanoTime() - start);
+        final Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+        final SupplierFailedException failure = cache.fetchFailed(key, cause);
+        inFlight.remove(key, fetch);
+        fetch.completeExceptionally(failure);
+    }
+
+    /**
+     * @return a future completed by the shared one, so that a caller completing or cancelling it
+     * does not affect the other callers.
+     */
+    private static <T> CompletableFuture<T> copy(final CompletableFuture<T> shared) {
+        return shared.thenApply(Function.identity());
+    }
+
+    private static <T> T join(final CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the statistics of the cache since it was created, shared with the
+     * {@link #synchronous() blocking view}.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public void close() {
+        cache.close();
+    }
+
+}
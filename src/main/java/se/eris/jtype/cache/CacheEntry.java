@@ -0,0 +1,153 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+import se.eris.jtype.cache.dated.Dated;
+import se.eris.jtype.cache.dated.FetchedAt;
+import se.eris.jtype.cache.dated.NextFetchTime;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * A cached value with its fetch time, next fetch time and sync fetch time as {@link Ticker} readings. Kept flat,
+ * one object per entry, instead of the {@link Dated} object graph, which is only created as a
+ * view when asked for.
+ *
+ * An entry without a value remembers that the source had no value for the key (negative caching).
+ * It is fresh until its next fetch time, after which it is fetched synchronously.
+ *
+ * The value is kept on the heap, {@link OffHeapEntry} keeps it outside.
+ */
+class CacheEntry<V> {
+
+    @Nullable
+    private final V value;
+    private final long fetchedAt;
+    private final long nextFetchAt;
+    private final long fetchNanos;
+    private final long syncFetchAt;
+    private final int failures;
+    private boolean accessed;
+
+    static <V> CacheEntry<V> absent(final long fetchedAt, final long nextFetchAt) {
+        return new CacheEntry<>(null, fetchedAt, nextFetchAt, nextFetchAt - fetchedAt, nextFetchAt, 0);
+    }
+
+    /**
+     * @param fetchNanos the refresh period the next fetch time was drawn from, before jitter.
+     * @param syncFetchAt when the value becomes too old to be returned while it is refreshed.
+     * @param failures the number of consecutive failed fetches since the value was fetched.
+     */
+    CacheEntry(@Nullable final V value, final long fetchedAt, final long nextFetchAt, final long fetchNanos, final long syncFetchAt, final int failures) {
+        this.value = value;
+        this.fetchedAt = fetchedAt;
+        this.nextFetchAt = nextFetchAt;
+        this.fetchNanos = fetchNanos;
+        this.syncFetchAt = syncFetchAt;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the value, or null if the entry is {@link #isAbsent() absent}.
+     */
+    @Nullable
+    V getValue() {
+        return value;
+    }
+
+    boolean isAbsent() {
+        return value == null;
+    }
+
+    /**
+     * @return an entry with the same value and other fetch times, for a failed refresh. The value
+     * is shared, not copied, so this entry must not be released once replaced by the new one.
+     */
+    CacheEntry<V> withFetchTimes(final long fetchedAt, final long nextFetchAt, final long syncFetchAt, final int failures) {
+        return new CacheEntry<>(value, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt, failures);
+    }
+
+    /**
+     * Called when the entry is replaced or removed from the cache, to free what it holds outside
+     * the heap.
+     */
+    void release() {
+    }
+
+    long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    long getNextFetchAt() {
+        return nextFetchAt;
+    }
+
+    long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    long getSyncFetchAt() {
+        return syncFetchAt;
+    }
+
+    int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Marks the entry as read since it was fetched. Not volatile, it is only a hint for refreshing
+     * ahead, and is only written once to keep the hit path cheap.
+     */
+    void markAccessed() {
+        if (!accessed) {
+            accessed = true;
+        }
+    }
+
+    boolean isAccessed() {
+        return accessed;
+    }
+
+    boolean isFresh(final long now) {
+        return (now - nextFetchAt) < 0;
+    }
+
+    /**
+     * @return true if the value is too old to be returned while it is refreshed asynchronously.
+     */
+    boolean needsSyncFetch(final long now) {
+        if (isAbsent()) {
+            return !isFresh(now);
+        }
+        return (now - syncFetchAt) >= 0;
+    }
+
+    /**
+     * @param wallNow the wall clock time at the tick {@code now}, used to translate the ticks.
+     */
+    Optional<Dated<V>> toDated(final LocalDateTime wallNow, final long now) {
+        final V current = getValue();
+        if (current == null) {
+            return Optional.empty();
+        }
+        return Optional.of(Dated.sucessful(current,
+                FetchedAt.of(wallNow.minusNanos(now - fetchedAt)),
+                NextFetchTime.of(wallNow.plusNanos(nextFetchAt - now))));
+    }
+
+}
@@ -16,13 +16,15 @@
 package se.eris.jtype.cache;
 
 import org.jetbrains.annotations.Nullable;
+import se.eris.jtype.collection.HashcodeEquals;
 
 import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
-public final class CacheParameters<K> {
+public final class CacheParameters<K, V> {
 
     private final Duration asyncFetchPeriod;
     private final Duration syncFetchPeriod;
@@ -30,16 +32,90 @@ public final class CacheParameters<K> {
 
     @Nullable
     private final BiConsumer<K, Throwable> supplierFailedAction;
+    @Nullable
+    private final Long maximumSize;
+    @Nullable
+    private final Long maximumWeight;
+    @Nullable
+    private final Weigher<? super K, ? super V> weigher;
+    @Nullable
+    private final Executor refreshExecutor;
+    private final Ticker ticker;
+    @Nullable
+    private final Duration refreshAheadPeriod;
+    @Nullable
+    private final Duration negativeCachePeriod;
+    private final long negativeCacheMaximumSize;
+    @Nullable
+    private final Duration maximumBackoffPeriod;
+    @Nullable
+    private final Duration circuitBreakerOpenPeriod;
+    private final int circuitBreakerFailureThreshold;
+    @Nullable
+    private final Double hedgePercentile;
+    private final double hedgeBudget;
+    @Nullable
+    private final Codec<V> offHeapCodec;
+    private final long offHeapCapacity;
+    @Nullable
+    private final Duration maximumStaleness;
+    @Nullable
+    private final Duration maximumAdaptiveFetchPeriod;
+    @Nullable
+    private final HashcodeEquals<? super V> adaptiveFetchEquality;
+    private final double fetchJitter;
+    @Nullable
+    private final Expiry<? super K, ? super V> expiry;
 
     private CacheParameters(
             final Duration asyncFetchPeriod,
             final Duration syncFetchPeriod,
             final Duration fetchTimeoutPeriod,
-            @Nullable final BiConsumer<K, Throwable> supplierFailedAction) {
+            @Nullable final BiConsumer<K, Throwable> supplierFailedAction,
+            @Nullable final Long maximumSize,
+            @Nullable final Long maximumWeight,
+            @Nullable final Weigher<? super K, ? super V> weigher,
+            @Nullable final Executor refreshExecutor,
+            final Ticker ticker,
+            @Nullable final Duration refreshAheadPeriod,
+            @Nullable final Duration negativeCachePeriod,
+            final long negativeCacheMaximumSize,
+            @Nullable final Duration maximumBackoffPeriod,
+            @Nullable final Duration circuitBreakerOpenPeriod,
+            final int circuitBreakerFailureThreshold,
+            @Nullable final Double hedgePercentile,
+            final double hedgeBudget,
+            @Nullable final Codec<V> offHeapCodec,
+            final long offHeapCapacity,
+            @Nullable final Duration maximumStaleness,
+            @Nullable final Duration maximumAdaptiveFetchPeriod,
+            @Nullable final HashcodeEquals<? super V> adaptiveFetchEquality,
+            final double fetchJitter,
+            @Nullable final Expiry<? super K, ? super V> expiry) {
         this.syncFetchPeriod = syncFetchPeriod;
         this.asyncFetchPeriod = asyncFetchPeriod;
         this.fetchTimeoutPeriod = fetchTimeoutPeriod;
         this.supplierFailedAction = supplierFailedAction;
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.refreshExecutor = refreshExecutor;
+        this.ticker = ticker;
+        this.refreshAheadPeriod = refreshAheadPeriod;
+        this.negativeCachePeriod = negativeCachePeriod;
+        this.negativeCacheMaximumSize = negativeCacheMaximumSize;
+        this.maximumBackoffPeriod = maximumBackoffPeriod;
+        this.circuitBreakerOpenPeriod = circuitBreakerOpenPeriod;
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeBudget = hedgeBudget;
+        this.offHeapCodec = offHeapCodec;
+        this.offHeapCapacity = offHeapCapacity;
+        this.maximumStaleness = maximumStaleness;
+        this.maximumAdaptiveFetchPeriod = maximumAdaptiveFetchPeriod;
+        this.adaptiveFetchEquality = adaptiveFetchEquality;
+        this.fetchJitter = fetchJitter;
+        this.expiry = expiry;
     }
 
     /**
@@ -57,6 +133,11 @@ public final class CacheParameters<K> {
         return syncFetchPeriod;
     }
 
+    /**
+     * @return the time after which a fetch is considered hung. A synchronous fetch of a key with a
+     * stale value returns the stale value after this time and lets the fetch finish in the
+     * background, and a new asynchronous fetch may be started.
+     */
     public Duration getFetchTimeoutPeriod() {
         return fetchTimeoutPeriod;
     }
@@ -69,13 +150,215 @@ public final class CacheParameters<K> {
         return Optional.ofNullable(supplierFailedAction);
     }
 
-    public static class Builder<K> {
+    /**
+     * @return the maximum number of entries in the cache, if bounded. When the cache grows beyond
+     * it the keys least likely to be used again are evicted (Window TinyLFU).
+     */
+    public Optional<Long> getMaximumSize() {
+        return Optional.ofNullable(maximumSize);
+    }
+
+    /**
+     * @return the maximum total weight of the entries in the cache, as calculated by the
+     * {@link #getWeigher() weigher}, if bounded by weight.
+     */
+    public Optional<Long> getMaximumWeight() {
+        return Optional.ofNullable(maximumWeight);
+    }
+
+    /**
+     * @return the {@link Weigher} used together with the {@link #getMaximumWeight() maximum weight}.
+     */
+    public Optional<Weigher<? super K, ? super V>> getWeigher() {
+        return Optional.ofNullable(weigher);
+    }
+
+    /**
+     * @return the {@link Executor} running the asynchronous refreshes, if given. It is not shut
+     * down when the cache is closed, so it can be shared between caches. If not given each cache
+     * creates its own {@link RefreshExecutors#bounded() bounded} executor.
+     */
+    public Optional<Executor> getRefreshExecutor() {
+        return Optional.ofNullable(refreshExecutor);
+    }
+
+    /**
+     * @return the {@link Ticker} all fetch periods are measured with, {@link Ticker#system()} unless
+     * set.
+     */
+    public Ticker getTicker() {
+        return ticker;
+    }
+
+    /**
+     * @return how long before the next fetch time a key that has been read since it was fetched is
+     * refreshed in the background, if refreshing ahead. Keys that have not been read are left to
+     * be refreshed when next read.
+     */
+    public Optional<Duration> getRefreshAheadPeriod() {
+        return Optional.ofNullable(refreshAheadPeriod);
+    }
+
+    /**
+     * @return how long it is remembered that the source had no value for a key, if negative caching.
+     * During that time gets of the key return empty without calling the source.
+     */
+    public Optional<Duration> getNegativeCachePeriod() {
+        return Optional.ofNullable(negativeCachePeriod);
+    }
+
+    /**
+     * @return the maximum number of keys remembered as having no value. They are evicted separately
+     * from the keys with values, so that many lookups of non existing keys can not evict values.
+     */
+    public long getNegativeCacheMaximumSize() {
+        return negativeCacheMaximumSize;
+    }
+
+    /**
+     * @return the longest time a key is left before it is fetched again after failures, if backing
+     * off. Each consecutive failure of a key doubles the time until its next fetch, starting from
+     * the async fetch period, with random jitter so that keys failing together spread out.
+     */
+    public Optional<Duration> getMaximumBackoffPeriod() {
+        return Optional.ofNullable(maximumBackoffPeriod);
+    }
+
+    /**
+     * @return how long the circuit breaker stays open before letting one call probe the source, if
+     * using a circuit breaker. While open stale values are returned without calling the source.
+     */
+    public Optional<Duration> getCircuitBreakerOpenPeriod() {
+        return Optional.ofNullable(circuitBreakerOpenPeriod);
+    }
+
+    /**
+     * @return the number of consecutive source failures, over all keys, that opens the circuit
+     * breaker.
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * @return the percentile, between 0 and 1, of the observed source latencies after which a
+     * second call is made for a key that is not cached, if hedging. The first value returned is
+     * used and the other call is cancelled.
+     */
+    public Optional<Double> getHedgePercentile() {
+        return Optional.ofNullable(hedgePercentile);
+    }
+
+    /**
+     * @return the largest fraction of all source calls that may be hedged.
+     */
+    public double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * @return the {@link Codec} values are stored outside the heap with, if stored off heap. The
+     * keys, and the fetch times of the values, are kept on the heap.
+     */
+    public Optional<Codec<V>> getOffHeapCodec() {
+        return Optional.ofNullable(offHeapCodec);
+    }
+
+    /**
+     * @return the most bytes allocated outside the heap for values. Values that do not fit are kept
+     * on the heap, so the cache should also be bounded by size or weight.
+     */
+    public long getOffHeapCapacity() {
+        return offHeapCapacity;
+    }
+
+    /**
+     * @return how long after it was fetched an entry is removed from the cache, if limited. When
+     * longer than the sync fetch period, keys that are read are fetched again before it passes,
+     * so it removes the keys no one reads anymore. Entries are never removed before their sync
+     * fetch time, also when an {@link #getExpiry() expiry} makes it later. Entries are removed by a
+     * background sweep, within about a second after the time has passed.
+     */
+    public Optional<Duration> getMaximumStaleness() {
+        return Optional.ofNullable(maximumStaleness);
+    }
+
+    /**
+     * @return the longest async fetch period of a key, if adaptive. Each time a refetched value
+     * equals the cached one the period of the key is doubled, up to this, and each time it differs
+     * it is halved, down to the {@link #getAsyncFetchPeriod() async fetch period}. Values older
+     * than the sync fetch period are still fetched synchronously, so the maximum should be kept
+     * below it to refresh in the background.
+     */
+    public Optional<Duration> getMaximumAdaptiveFetchPeriod() {
+        return Optional.ofNullable(maximumAdaptiveFetchPeriod);
+    }
+
+    /**
+     * @return how refetched values are compared to the cached ones if the fetch period is
+     * adaptive, {@link Object#equals(Object)} unless given.
+     */
+    public Optional<HashcodeEquals<? super V>> getAdaptiveFetchEquality() {
+        return Optional.ofNullable(adaptiveFetchEquality);
+    }
+
+    /**
+     * @return the largest fraction by which the async fetch period of an entry is randomly
+     * shortened, so that entries fetched together are not all refreshed together.
+     */
+    public double getFetchJitter() {
+        return fetchJitter;
+    }
+
+    /**
+     * @return the fetch periods of each value, instead of the async and sync fetch periods.
+     */
+    public Optional<Expiry<? super K, ? super V>> getExpiry() {
+        return Optional.ofNullable(expiry);
+    }
+
+    /**
+     * @return the parameters of one of a number of segments sharing the bounds of these
+     * parameters, refreshing on the given executor.
+     */
+    CacheParameters<K, V> forSegment(final int segments, final Executor segmentRefreshExecutor) {
+        return new CacheParameters<>(asyncFetchPeriod, syncFetchPeriod, fetchTimeoutPeriod, supplierFailedAction,
+                divide(maximumSize, segments), divide(maximumWeight, segments), weigher, segmentRefreshExecutor, ticker,
+                refreshAheadPeriod, negativeCachePeriod, divide(negativeCacheMaximumSize, segments),
+                maximumBackoffPeriod, circuitBreakerOpenPeriod, circuitBreakerFailureThreshold, hedgePercentile, hedgeBudget,
+                offHeapCodec, divide(offHeapCapacity, segments), maximumStaleness, maximumAdaptiveFetchPeriod, adaptiveFetchEquality,
+                fetchJitter, expiry);
+    }
+
+    /**
+     * @return the parameters of the second tier behind a cache with these parameters: the bounds
+     * and the storage of the given parameters, and the fetch periods and the ticker of these. The
+     * second tier never fetches by itself, so it gets no refresh ahead, sweeping, negative caching,
+     * circuit breaker, hedging or refresh executor of its own.
+     */
+    CacheParameters<K, V> forSecondTier(final CacheParameters<K, V> secondTier) {
+        return new CacheParameters<>(asyncFetchPeriod, syncFetchPeriod, fetchTimeoutPeriod, null,
+                secondTier.maximumSize, secondTier.maximumWeight, secondTier.weigher, Runnable::run, ticker,
+                null, null, 0, null, null, circuitBreakerFailureThreshold, null, hedgeBudget,
+                secondTier.offHeapCodec, secondTier.offHeapCapacity, null, null, null, 0, null);
+    }
+
+    @Nullable
+    private static Long divide(@Nullable final Long bound, final int segments) {
+        return (bound == null) ? null : divide(bound.longValue(), segments);
+    }
+
+    private static long divide(final long bound, final int segments) {
+        return (bound + segments - 1) / segments;
+    }
+
+    public static class Builder<K, V> {
 
         public static final Duration DEFAULT_ASYNC_REFETCH_TIME = Duration.ofSeconds(10);
         public static final Duration DEFAUL_SYNC_REFETCH_TIME = Duration.ofMinutes(1);
 
-        public static <K> Builder<K> init() {
-            return new Builder<K>();
+        public static <K, V> Builder<K, V> init() {
+            return new Builder<K, V>();
         }
 
         private Duration asyncFetchPeriod = DEFAULT_ASYNC_REFETCH_TIME;
@@ -83,29 +366,172 @@ public final class CacheParameters<K> {
         private Duration fetchTimeoutPeriod = Duration.ofSeconds(10);
         @Nullable
         private BiConsumer<K, Throwable> supplierFailedAction;
+        @Nullable
+        private Long maximumSize;
+        @Nullable
+        private Long maximumWeight;
+        @Nullable
+        private Weigher<? super K, ? super V> weigher;
+        @Nullable
+        private Executor refreshExecutor;
+        private Ticker ticker = Ticker.system();
+        @Nullable
+        private Duration refreshAheadPeriod;
+        @Nullable
+        private Duration negativeCachePeriod;
+        private long negativeCacheMaximumSize;
+        @Nullable
+        private Duration maximumBackoffPeriod;
+        @Nullable
+        private Duration circuitBreakerOpenPeriod;
+        private int circuitBreakerFailureThreshold;
+        @Nullable
+        private Double hedgePercentile;
+        private double hedgeBudget;
+        @Nullable
+        private Codec<V> offHeapCodec;
+        private long offHeapCapacity;
+        @Nullable
+        private Duration maximumStaleness;
+        @Nullable
+        private Duration maximumAdaptiveFetchPeriod;
+        @Nullable
+        private HashcodeEquals<? super V> adaptiveFetchEquality;
+        private double fetchJitter;
+        @Nullable
+        private Expiry<? super K, ? super V> expiry;
 
-        public Builder<K> asyncFetchPeriod(final Duration asyncFetchPeriod) {
+        public Builder<K, V> asyncFetchPeriod(final Duration asyncFetchPeriod) {
             this.asyncFetchPeriod = asyncFetchPeriod;
             return this;
         }
 
-        public Builder<K> syncFetchPeriod(final Duration syncFetchPeriod) {
+        public Builder<K, V> syncFetchPeriod(final Duration syncFetchPeriod) {
             this.syncFetchPeriod = syncFetchPeriod;
             return this;
         }
 
-        public Builder<K> fetchTimeoutPeriod(final Duration fetchTimeoutPeriod) {
+        public Builder<K, V> fetchTimeoutPeriod(final Duration fetchTimeoutPeriod) {
             this.fetchTimeoutPeriod = fetchTimeoutPeriod;
             return this;
         }
 
-        public Builder<K> supplierFailedAction(@Nullable final BiConsumer<K, Throwable> supplierFailedAction) {
+        public Builder<K, V> supplierFailedAction(@Nullable final BiConsumer<K, Throwable> supplierFailedAction) {
             this.supplierFailedAction = supplierFailedAction;
             return this;
         }
 
-        public CacheParameters<K> build() {
-            return new CacheParameters<K>(asyncFetchPeriod, syncFetchPeriod, fetchTimeoutPeriod, supplierFailedAction);
+        public Builder<K, V> maximumSize(final long maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("Maximum size " + maximumSize + " less than zero");
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder<K, V> maximumWeight(final long maximumWeight, final Weigher<? super K, ? super V> weigher) {
+            if (maximumWeight < 0) {
+                throw new IllegalArgumentException("Maximum weight " + maximumWeight + " less than zero");
+            }
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            return this;
+        }
+
+        public Builder<K, V> refreshExecutor(@Nullable final Executor refreshExecutor) {
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        public Builder<K, V> ticker(final Ticker ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public Builder<K, V> refreshAheadPeriod(@Nullable final Duration refreshAheadPeriod) {
+            this.refreshAheadPeriod = refreshAheadPeriod;
+            return this;
+        }
+
+        public Builder<K, V> negativeCaching(final Duration negativeCachePeriod, final long negativeCacheMaximumSize) {
+            if (negativeCacheMaximumSize < 0) {
+                throw new IllegalArgumentException("Negative cache maximum size " + negativeCacheMaximumSize + " less than zero");
+            }
+            this.negativeCachePeriod = negativeCachePeriod;
+            this.negativeCacheMaximumSize = negativeCacheMaximumSize;
+            return this;
+        }
+
+        public Builder<K, V> maximumBackoffPeriod(@Nullable final Duration maximumBackoffPeriod) {
+            this.maximumBackoffPeriod = maximumBackoffPeriod;
+            return this;
+        }
+
+        public Builder<K, V> circuitBreaker(final int failureThreshold, final Duration openPeriod) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("Circuit breaker failure threshold " + failureThreshold + " less than one");
+            }
+            this.circuitBreakerFailureThreshold = failureThreshold;
+            this.circuitBreakerOpenPeriod = openPeriod;
+            return this;
+        }
+
+        public Builder<K, V> hedging(final double percentile, final double budget) {
+            if ((percentile <= 0) || (percentile > 1)) {
+                throw new IllegalArgumentException("Hedge percentile " + percentile + " not above zero and at most one");
+            }
+            if ((budget < 0) || (budget > 1)) {
+                throw new IllegalArgumentException("Hedge budget " + budget + " not between zero and one");
+            }
+            this.hedgePercentile = percentile;
+            this.hedgeBudget = budget;
+            return this;
+        }
+
+        public Builder<K, V> offHeap(final Codec<V> valueCodec, final long capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("Off heap capacity " + capacity + " less than zero");
+            }
+            this.offHeapCodec = valueCodec;
+            this.offHeapCapacity = capacity;
+            return this;
+        }
+
+        public Builder<K, V> maximumStaleness(@Nullable final Duration maximumStaleness) {
+            this.maximumStaleness = maximumStaleness;
+            return this;
+        }
+
+        public Builder<K, V> adaptiveFetchPeriod(final Duration maximumPeriod) {
+            this.maximumAdaptiveFetchPeriod = maximumPeriod;
+            this.adaptiveFetchEquality = null;
+            return this;
+        }
+
+        public Builder<K, V> adaptiveFetchPeriod(final Duration maximumPeriod, final HashcodeEquals<? super V> equality) {
+            this.maximumAdaptiveFetchPeriod = maximumPeriod;
+            this.adaptiveFetchEquality = equality;
+            return this;
+        }
+
+        public Builder<K, V> fetchJitter(final double fetchJitter) {
+            if ((fetchJitter < 0) || (fetchJitter >= 1)) {
+                throw new IllegalArgumentException("Fetch jitter " + fetchJitter + " not at least zero and below one");
+            }
+            this.fetchJitter = fetchJitter;
+            return this;
+        }
+
+        public Builder<K, V> expiry(final Expiry<? super K, ? super V> expiry) {
+            this.expiry = expiry;
+            return this;
+        }
+
+        public CacheParameters<K, V> build() {
+            if ((maximumSize != null) && (maximumWeight != null)) {
+                throw new IllegalStateException("Maximum size and maximum weight can not both be set");
+            }
+            return new CacheParameters<K, V>(asyncFetchPeriod, syncFetchPeriod, fetchTimeoutPeriod, supplierFailedAction, maximumSize, maximumWeight, weigher, refreshExecutor, ticker, refreshAheadPeriod, negativeCachePeriod, negativeCacheMaximumSize, maximumBackoffPeriod, circuitBreakerOpenPeriod, circuitBreakerFailureThreshold, hedgePercentile, hedgeBudget, offHeapCodec, offHeapCapacity, maximumStaleness, maximumAdaptiveFetchPeriod, adaptiveFetchEquality, fetchJitter, expiry);
         }
 
     }
@@ -0,0 +1,192 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Writes the values of a {@link FaultTolerantCache} with their fetch times to a local file, and
+ * restores them into a new cache, so that a restarted application can serve stale values while
+ * the source is down.
+ *
+ * The fetch times are written relative to the time of writing, and restored relative to the time
+ * of restoring, so a value restored a minute after it was written is a minute older. Keys the
+ * source had no value for are not written. The file is written to a temporary file that replaces
+ * the snapshot when complete, and it is read memory mapped, which limits it to 2 GB.
+ */
+public final class CacheSnapshot<K, V> {
+
+    private static final int MAGIC = 0x46544353;
+    private static final int VERSION = 1;
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path file;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+
+    public static <K, V> CacheSnapshot<K, V> of(final Path file, final Codec<K> keyCodec, final Codec<V> valueCodec) {
+        return new CacheSnapshot<>(file, keyCodec, valueCodec);
+    }
+
+    private CacheSnapshot(final Path file, final Codec<K> keyCodec, final Codec<V> valueCodec) {
+        this.file = file;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Writes the values of the cache. The cache is not locked, values stored while writing may or
+     * may not be included. If the write fails the temporary file is deleted and the previous
+     * snapshot is left as it was.
+     */
+    public void write(final FaultTolerantCache<K, V> cache) throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        boolean moved = false;
+        try {
+            writeTo(temporary, cache);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    private void writeTo(final Path temporary, final FaultTolerantCache<K, V> cache) throws IOException {
+        final long now = cache.now();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            final AtomicReference<IOException> failure = new AtomicReference<>();
+            cache.forEachEntry((key, entry) -> {
+                final V value = entry.getValue();
+                if ((value == null) || (failure.get() != null)) {
+                    return;
+                }
+                try {
+                    writeEntry(out, key, value, now - entry.getFetchedAt(), entry.getNextFetchAt() - now);
+                } catch (final IOException e) {
+                    failure.set(e);
+                }
+            });
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+    }
+
+    private void writeEntry(final DataOutputStream out, final K key, final V value, final long age, final long untilNextFetch) throws IOException {
+        final byte[] keyBytes = keyCodec.encode(key);
+        final byte[] valueBytes = valueCodec.encode(value);
+        out.writeLong(age);
+        out.writeLong(untilNextFetch);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(valueBytes.length);
+        out.write(valueBytes);
+    }
+
+    /**
+     * Restores the values of the snapshot into the cache, keys that already have a value in the
+     * cache are left as they are. Does nothing if there is no snapshot.
+     *
+     * @return the number of values restored from the snapshot, not counting the keys left as they are.
+     */
+    public int restore(final FaultTolerantCache<K, V> cache) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " larger than 2 GB");
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return restore(cache, buffer);
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Snapshot " + file + " is truncated or corrupt", e);
+        }
+    }
+
+    private int restore(final FaultTolerantCache<K, V> cache, final ByteBuffer buffer) throws IOException {
+        if ((buffer.remaining() < 16) || (buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+            throw new IOException("Not a cache snapshot " + file);
+        }
+        final long sinceWritten = Math.max(0, System.currentTimeMillis() - buffer.getLong()) * NANOS_PER_MILLI;
+        final long now = cache.now();
+        int restored = 0;
+        while (buffer.hasRemaining()) {
+            final long age = buffer.getLong();
+            final long untilNextFetch = buffer.getLong();
+            final K key = keyCodec.decode(slice(buffer));
+            final V value = valueCodec.decode(slice(buffer));
+            if (cache.restore(key, value, now - age - sinceWritten, now + untilNextFetch - sinceWritten)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * @return the next length prefixed bytes of the buffer, the buffer is moved past them.
+     */
+    private static ByteBuffer slice(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    /**
+     * Writes the cache every period on a daemon thread of its own, so that writing a large cache
+     * does not delay the refreshes of other caches, until the returned future is cancelled. The
+     * thread is stopped when the future is cancelled.
+     *
+     * @param onFailure called with the exception if a write fails, the next write is still made.
+     */
+    public ScheduledFuture<?> writePeriodically(final FaultTolerantCache<K, V> cache, final Duration period, final Consumer<Exception> onFailure) {
+        final long nanos = period.toNanos();
+        final ScheduledThreadPoolExecutor writer = RefreshExecutors.dedicatedScheduler("cache-snapshot-" + file.getFileName());
+        final ScheduledFuture<?> future = writer.scheduleWithFixedDelay(() -> {
+            try {
+                write(cache);
+            } catch (final IOException | RuntimeException e) {
+                onFailure.accept(e);
+            }
+        }, nanos, nanos, TimeUnit.NANOSECONDS);
+        writer.shutdown();
+        return future;
+    }
+
+}
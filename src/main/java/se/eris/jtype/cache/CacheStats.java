@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * A snapshot of the statistics of a cache since it was created. The counters are read one at a
+ * time while the cache is in use, so they are not guaranteed to be consistent with each other.
+ */
+public final class CacheStats {
+
+    private final long freshHitCount;
+    private final long staleHitCount;
+    private final long syncRefreshCount;
+    private final long missCount;
+    private final long loadCount;
+    private final long failureCount;
+    private final long[] loadLatencies;
+
+    CacheStats(
+            final long freshHitCount,
+            final long staleHitCount,
+            final long syncRefreshCount,
+            final long missCount,
+            final long loadCount,
+            final long failureCount,
+            final long[] loadLatencies) {
+        this.freshHitCount = freshHitCount;
+        this.staleHitCount = staleHitCount;
+        this.syncRefreshCount = syncRefreshCount;
+        this.missCount = missCount;
+        this.loadCount = loadCount;
+        this.failureCount = failureCount;
+        this.loadLatencies = loadLatencies;
+    }
+
+    /**
+     * @return the number of gets that returned a fresh cached value.
+     */
+    public long getFreshHitCount() {
+        return freshHitCount;
+    }
+
+    /**
+     * @return the number of gets that returned a stale cached value while it was refreshed
+     * asynchronously.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /**
+     * @return the number of gets of a cached value too old to return, that was fetched synchronously.
+     */
+    public long getSyncRefreshCount() {
+        return syncRefreshCount;
+    }
+
+    /**
+     * @return the number of gets of keys that were not cached.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of gets, all hits, sync refreshes and misses.
+     */
+    public long getRequestCount() {
+        return freshHitCount + staleHitCount + syncRefreshCount + missCount;
+    }
+
+    /**
+     * @return the number of successful calls to the source.
+     */
+    public long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the number of calls to the source that failed.
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @param percentile between 0 and 1.
+     * @return the time that the percentile of the source calls, successful or not, took at most, if
+     * the source has been called. Rounded up by at most an eighth.
+     */
+    public Optional<Duration> getLoadLatency(final double percentile) {
+        final long nanos = LatencyHistogram.percentile(loadLatencies, percentile);
+        return (nanos < 0) ? Optional.empty() : Optional.of(Duration.ofNanos(nanos));
+    }
+
+    /**
+     * @return the sum of these and the other statistics, as of a cache made up of both caches.
+     */
+    CacheStats plus(final CacheStats other) {
+        final long[] latencies = loadLatencies.clone();
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] += other.loadLatencies[i];
+        }
+        return new CacheStats(
+                freshHitCount + other.freshHitCount,
+                staleHitCount + other.staleHitCount,
+                syncRefreshCount + other.syncRefreshCount,
+                missCount + other.missCount,
+                loadCount + other.loadCount,
+                failureCount + other.failureCount,
+                latencies);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "freshHitCount=" + freshHitCount +
+                ", staleHitCount=" + staleHitCount +
+                ", syncRefreshCount=" + syncRefreshCount +
+                ", missCount=" + missCount +
+                ", loadCount=" + loadCount +
+                ", failureCount=" + failureCount +
+                '}';
+    }
+
+}
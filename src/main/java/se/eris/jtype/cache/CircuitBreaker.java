@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+/**
+ * A circuit breaker over all calls to the source. It opens after a number of consecutive failures,
+ * and then lets one call probe the source each open period (half-open). A successful call closes
+ * it, a failed probe keeps it open for another period.
+ *
+ * The closed state is checked with a volatile read, the state only changes under the lock.
+ */
+final class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private volatile State state = State.CLOSED;
+    private volatile int consecutiveFailures;
+    private long nextProbeAt;
+
+    CircuitBreaker(final int failureThreshold, final long openNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * @return true if the source may be called, when open it is true for one probing call per open
+     * period.
+     */
+    boolean allowRequest(final long now) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if ((state == State.CLOSED) || ((now - nextProbeAt) >= 0)) {
+                if (state != State.CLOSED) {
+                    state = State.HALF_OPEN;
+                    nextProbeAt = now + openNanos;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return true if a call to the source would be refused, without using up the probing call.
+     */
+    boolean isRejecting(final long now) {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        synchronized (this) {
+            return (state != State.CLOSED) && ((now - nextProbeAt) < 0);
+        }
+    }
+
+    void recordSuccess() {
+        if ((state == State.CLOSED) && (consecutiveFailures == 0)) {
+            return;
+        }
+        synchronized (this) {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+
+    synchronized void recordFailure(final long now) {
+        consecutiveFailures++;
+        if ((state == State.HALF_OPEN) || ((state == State.CLOSED) && (consecutiveFailures >= failureThreshold))) {
+            state = State.OPEN;
+            nextProbeAt = now + openNanos;
+        }
+    }
+
+}
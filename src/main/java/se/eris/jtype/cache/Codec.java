@@ -0,0 +1,48 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts keys or values to and from bytes, for storing them outside the heap or in a file.
+ */
+public interface Codec<T> {
+
+    static Codec<String> utf8() {
+        return new Codec<String>() {
+            @Override
+            public byte[] encode(final String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(final ByteBuffer bytes) {
+                return StandardCharsets.UTF_8.decode(bytes).toString();
+            }
+        };
+    }
+
+    byte[] encode(T value);
+
+    /**
+     * @param bytes the encoded bytes, from its position to its limit. The buffer may be reused or
+     * unmapped after the call, so the decoded value must not keep a reference to it.
+     */
+    T decode(ByteBuffer bytes);
+
+}
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.time.Duration;
+import java.util.function.BiFunction;
+
+/**
+ * Computes the fetch periods of each value when it is fetched, for values that know how long they
+ * are valid, instead of the async and sync fetch periods of the {@link CacheParameters}.
+ */
+public interface Expiry<K, V> {
+
+    static <K, V> Expiry<K, V> of(final BiFunction<? super K, ? super V, Duration> asyncFetchPeriod, final BiFunction<? super K, ? super V, Duration> syncFetchPeriod) {
+        return new Expiry<K, V>() {
+            @Override
+            public Duration asyncFetchPeriod(final K key, final V value) {
+                return asyncFetchPeriod.apply(key, value);
+            }
+
+            @Override
+            public Duration syncFetchPeriod(final K key, final V value) {
+                return syncFetchPeriod.apply(key, value);
+            }
+        };
+    }
+
+    /**
+     * @return how long after it is fetched the value is fresh, after which it is returned while
+     * refreshed asynchronously.
+     */
+    Duration asyncFetchPeriod(K key, V value);
+
+    /**
+     * @return how long after it is fetched the value may be returned, after which it is refreshed
+     * synchronously.
+     */
+    Duration syncFetchPeriod(K key, V value);
+
+}
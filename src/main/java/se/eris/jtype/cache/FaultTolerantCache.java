@@ -15,108 +15,590 @@
  */
 package se.eris.jtype.cache;
 
+import org.jetbrains.annotations.Nullable;
 import se.eris.jtype.cache.dated.Dated;
-import se.eris.jtype.cache.dated.FetchedAt;
-import se.eris.jtype.cache.dated.NextFetchTime;
+import se.eris.jtype.collection.HashcodeEquals;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
-public final class FaultTolerantCache<K, V> {
+public final class FaultTolerantCache<K, V> implements AutoCloseable {
 
-    private final Map<K, Dated<V>> cache = new ConcurrentHashMap<>();
+    private static final int PARALLEL_LOOKUP_THRESHOLD = 10_000;
+    private static final long MINIMUM_REFRESH_AHEAD_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAXIMUM_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<K, CacheEntry<V>> cache = new ConcurrentHashMap<>();
     private final SingleFetchTracker<K> currentlyFetching;
+    private final SingleFlightLoader<K, Optional<V>> loader = new SingleFlightLoader<>();
+    private final StatsCounter statsCounter = new StatsCounter();
+    @Nullable
+    private final TinyLfuPolicy<K> policy;
+    private final Weigher<? super K, ? super V> weigher;
+    @Nullable
+    private final OffHeapStore<V> offHeapStore;
+    @Nullable
+    private final TinyLfuPolicy<K> negativePolicy;
+    private final long negativeCacheNanos;
+    @Nullable
+    private final BiPredicate<? super V, ? super V> valueEquality;
+    private final long maximumAdaptiveFetchNanos;
+    private final double fetchJitter;
+    @Nullable
+    private final Expiry<? super K, ? super V> expiry;
+    private final long maximumBackoffNanos;
+    @Nullable
+    private final CircuitBreaker circuitBreaker;
+
+    @Nullable
+    private final FaultTolerantCache<K, V> secondTier;
 
     private final Function<K, Optional<V>> source;
-    private final CacheParameters<K> cacheParameters;
+    @Nullable
+    private final HedgedSource<K, V> hedgedSource;
+    @Nullable
+    private final Function<Set<K>, Map<K, V>> batchSource;
+    private final CacheParameters<K, V> cacheParameters;
     private final Supplier<LocalDateTime> timeSupplier;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final Ticker ticker;
+    private final long asyncFetchNanos;
+    private final long syncFetchNanos;
+    private final long fetchTimeoutNanos;
+    private final Executor refreshExecutor;
+    @Nullable
+    private final ExecutorService ownedExecutor;
+    @Nullable
+    private final RefreshAheadScheduler<K> refreshAheadScheduler;
+    @Nullable
+    private final ScheduledFuture<?> refreshAheadTask;
+    @Nullable
+    private final TimerWheel<K> expiryWheel;
+    private final long maximumStalenessNanos;
+    @Nullable
+    private final ScheduledFuture<?> sweepTask;
+
+    public static <K, V> FaultTolerantCache<K, V> of(final Function<K, Optional<V>> source, final CacheParameters<K, V> cacheParameters) {
+        return new FaultTolerantCache<>(source, null, cacheParameters, LocalDateTime::now, cacheParameters.getTicker(), null, null, null);
+    }
 
-    public static <K, V> FaultTolerantCache<K, V> of(final Function<K, Optional<V>> source, final CacheParameters<K> cacheParameters) {
-        return of(source, cacheParameters, LocalDateTime::now);
+    /**
+     * @param batchSource fetches several keys in one call, used by {@link #getAll(Collection)}. Keys
+     * missing from the returned map are treated as an empty result from the source.
+     */
+    public static <K, V> FaultTolerantCache<K, V> of(final Function<K, Optional<V>> source, final Function<Set<K>, Map<K, V>> batchSource, final CacheParameters<K, V> cacheParameters) {
+        return new FaultTolerantCache<>(source, batchSource, cacheParameters, LocalDateTime::now, cacheParameters.getTicker(), null, null, null);
     }
 
-    public static <K, V> FaultTolerantCache<K, V> of(final Function<K, Optional<V>> source, final CacheParameters<K> cacheParameters, final Supplier<LocalDateTime> timeSupplier) {
-        return new FaultTolerantCache<>(source, cacheParameters, timeSupplier);
+    /**
+     * @param timeSupplier the time used instead of the {@link CacheParameters#getTicker() ticker}.
+     * Allocates on every read, prefer a {@link FakeTicker} for controlling the time in tests.
+     */
+    public static <K, V> FaultTolerantCache<K, V> of(final Function<K, Optional<V>> source, final CacheParameters<K, V> cacheParameters, final Supplier<LocalDateTime> timeSupplier) {
+        return new FaultTolerantCache<>(source, null, cacheParameters, timeSupplier, Ticker.of(timeSupplier), null, null, null);
     }
 
-    private FaultTolerantCache(final Function<K, Optional<V>> source, final CacheParameters<K> cacheParameters, final Supplier<LocalDateTime> timeSupplier) {
-        this.source = source;
+    /**
+     * Creates a cache in two tiers, typically a small one on the heap in front of a larger one
+     * {@link CacheParameters.Builder#offHeap stored off heap}. Values evicted from the first tier
+     * are moved to the second, and keys missing in the first tier are looked up in the second
+     * before calling the source. Values keep their fetch times across the tiers, so a stale value
+     * found in the second tier is refreshed as if it had been found in the first. Only a get moves
+     * a value from the second tier to the first, reads that only look, like getIfPresent and
+     * getPresent, leave it where it is.
+     *
+     * @param secondTierParameters the parameters of the second tier, of which only the bounds and
+     * the storage are used, the fetch periods and the ticker are those of the first tier.
+     */
+    public static <K, V> FaultTolerantCache<K, V> tiered(final Function<K, Optional<V>> source, final CacheParameters<K, V> cacheParameters, final CacheParameters<K, V> secondTierParameters) {
+        final FaultTolerantCache<K, V> secondTier = new FaultTolerantCache<>(source, null, cacheParameters.forSecondTier(secondTierParameters), LocalDateTime::now, cacheParameters.getTicker(), null, null, null);
+        return new FaultTolerantCache<>(source, null, cacheParameters, LocalDateTime::now, cacheParameters.getTicker(), secondTier, null, null);
+    }
+
+    /**
+     * Creates one segment of a {@link ShardedFaultTolerantCache}, sharing the circuit breaker and
+     * the hedged source of the other segments, if configured, as they all call the same source.
+     */
+    static <K, V> FaultTolerantCache<K, V> segment(
+            final Function<K, Optional<V>> source,
+            final CacheParameters<K, V> segmentParameters,
+            @Nullable final CircuitBreaker circuitBreaker,
+            @Nullable final HedgedSource<K, V> hedgedSource) {
+        return new FaultTolerantCache<>(source, null, segmentParameters, LocalDateTime::now, segmentParameters.getTicker(), null, circuitBreaker, hedgedSource);
+    }
+
+    /**
+     * @param sharedCircuitBreaker the circuit breaker to use, or null to create one from the
+     * parameters if configured.
+     * @param sharedHedgedSource the hedged source to use, or null to create one from the parameters
+     * if configured.
+     */
+    private FaultTolerantCache(
+            final Function<K, Optional<V>> source,
+            @Nullable final Function<Set<K>, Map<K, V>> batchSource,
+            final CacheParameters<K, V> cacheParameters,
+            final Supplier<LocalDateTime> timeSupplier,
+            final Ticker ticker,
+            @Nullable final FaultTolerantCache<K, V> secondTier,
+            @Nullable final CircuitBreaker sharedCircuitBreaker,
+            @Nullable final HedgedSource<K, V> sharedHedgedSource) {
+        this.batchSource = batchSource;
+        this.secondTier = secondTier;
         this.cacheParameters = cacheParameters;
         this.timeSupplier = timeSupplier;
+        this.ticker = ticker;
+        asyncFetchNanos = cacheParameters.getAsyncFetchPeriod().toNanos();
+        syncFetchNanos = cacheParameters.getSyncFetchPeriod().toNanos();
+        fetchTimeoutNanos = cacheParameters.getFetchTimeoutPeriod().toNanos();
         currentlyFetching = new SingleFetchTracker<>(cacheParameters.getFetchTimeoutPeriod());
+        policy = createPolicy(cacheParameters);
+        weigher = getWeigher(cacheParameters);
+        offHeapStore = createOffHeapStore(cacheParameters);
+        negativePolicy = cacheParameters.getNegativeCachePeriod().isPresent()
+                ? new TinyLfuPolicy<K>(cacheParameters.getNegativeCacheMaximumSize(), cacheParameters.getNegativeCacheMaximumSize())
+                : null;
+        negativeCacheNanos = cacheParameters.getNegativeCachePeriod().map(Duration::toNanos).orElse(0L);
+        valueEquality = getValueEquality(cacheParameters);
+        maximumAdaptiveFetchNanos = cacheParameters.getMaximumAdaptiveFetchPeriod().map(Duration::toNanos).orElse(0L);
+        fetchJitter = cacheParameters.getFetchJitter();
+        expiry = cacheParameters.getExpiry().orElse(null);
+        maximumBackoffNanos = cacheParameters.getMaximumBackoffPeriod().map(Duration::toNanos).orElse(0L);
+        circuitBreaker = (sharedCircuitBreaker != null) ? sharedCircuitBreaker : createCircuitBreaker(cacheParameters);
+        ownedExecutor = cacheParameters.getRefreshExecutor().isPresent() ? null : RefreshExecutors.bounded();
+        refreshExecutor = cacheParameters.getRefreshExecutor().orElse(ownedExecutor);
+        hedgedSource = (sharedHedgedSource != null) ? sharedHedgedSource : createHedgedSource(source, cacheParameters, refreshExecutor);
+        this.source = (hedgedSource != null) ? hedgedSource : source;
+        final Optional<Duration> refreshAheadPeriod = cacheParameters.getRefreshAheadPeriod();
+        if (refreshAheadPeriod.isPresent()) {
+            final long refreshAheadNanos = refreshAheadPeriod.get().toNanos();
+            final long checkInterval = Math.max(refreshAheadNanos / 2, MINIMUM_REFRESH_AHEAD_CHECK_INTERVAL);
+            refreshAheadScheduler = new RefreshAheadScheduler<>(refreshAheadNanos, ticker.read());
+            refreshAheadTask = RefreshExecutors.scheduler().scheduleWithFixedDelay(this::refreshAhead, checkInterval, checkInterval, TimeUnit.NANOSECONDS);
+        } else {
+            refreshAheadScheduler = null;
+            refreshAheadTask = null;
+        }
+        final Optional<Duration> maximumStaleness = cacheParameters.getMaximumStaleness();
+        if (maximumStaleness.isPresent()) {
+            maximumStalenessNanos = maximumStaleness.get().toNanos();
+            final long sweepInterval = Math.max(Math.min(maximumStalenessNanos / 2, MAXIMUM_SWEEP_INTERVAL), MINIMUM_REFRESH_AHEAD_CHECK_INTERVAL);
+            expiryWheel = new TimerWheel<>(ticker.read());
+            sweepTask = RefreshExecutors.scheduler().scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.NANOSECONDS);
+        } else {
+            maximumStalenessNanos = 0;
+            expiryWheel = null;
+            sweepTask = null;
+        }
+    }
+
+    @Nullable
+    static CircuitBreaker createCircuitBreaker(final CacheParameters<?, ?> cacheParameters) {
+        return cacheParameters.getCircuitBreakerOpenPeriod()
+                .map(openPeriod -> new CircuitBreaker(cacheParameters.getCircuitBreakerFailureThreshold(), openPeriod.toNanos()))
+                .orElse(null);
+    }
+
+    @Nullable
+    static <K, V> HedgedSource<K, V> createHedgedSource(final Function<K, Optional<V>> source, final CacheParameters<K, V> cacheParameters, final Executor executor) {
+        return cacheParameters.getHedgePercentile()
+                .map(percentile -> new HedgedSource<>(source, executor, percentile, cacheParameters.getHedgeBudget()))
+                .orElse(null);
+    }
+
+    @Nullable
+    private static <K> TinyLfuPolicy<K> createPolicy(final CacheParameters<K, ?> cacheParameters) {
+        final Optional<Long> maximumSize = cacheParameters.getMaximumSize();
+        if (maximumSize.isPresent()) {
+            return new TinyLfuPolicy<>(maximumSize.get(), maximumSize.get());
+        }
+        return cacheParameters.getMaximumWeight().map(maximumWeight -> new TinyLfuPolicy<K>(maximumWeight, 0)).orElse(null);
+    }
+
+    /**
+     * @return how refetched values are compared if the refresh period is adaptive.
+     */
+    @Nullable
+    private static <K, V> BiPredicate<? super V, ? super V> getValueEquality(final CacheParameters<K, V> cacheParameters) {
+        if (!cacheParameters.getMaximumAdaptiveFetchPeriod().isPresent()) {
+            return null;
+        }
+        return cacheParameters.getAdaptiveFetchEquality()
+                .<BiPredicate<? super V, ? super V>>map(HashcodeEquals::equalsFunction)
+                .orElse(Object::equals);
+    }
+
+    @Nullable
+    private static <K, V> OffHeapStore<V> createOffHeapStore(final CacheParameters<K, V> cacheParameters) {
+        return cacheParameters.getOffHeapCodec()
+                .map(codec -> new OffHeapStore<>(codec, cacheParameters.getOffHeapCapacity()))
+                .orElse(null);
+    }
+
+    private static <K, V> Weigher<? super K, ? super V> getWeigher(final CacheParameters<K, V> cacheParameters) {
+        return cacheParameters.getWeigher().orElseGet(Weigher::singleton);
     }
 
     public Optional<V> get(final K key) {
-        final Optional<Dated<V>> opDated = Optional.ofNullable(cache.get(key));
-        if (!opDated.isPresent()) {
-            return syncFetch(key);
+        return Optional.ofNullable(getOrNull(key));
+    }
+
+    /**
+     * Same as {@link #get(Object)} but returns the default value instead of an empty
+     * {@link Optional}. Does not allocate when the value is cached and fresh.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public V getOrDefault(final K key, final V defaultValue) {
+        final V value = getOrNull(key);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * Same as {@link #get(Object)} but returns null instead of an empty {@link Optional}. Does not
+     * allocate when the value is cached and fresh.
+     */
+    @SuppressWarnings("WeakerAccess")
+    @Nullable
+    public V getOrNull(final K key) {
+        final CacheEntry<V> entry = lookup(key);
+        if (entry == null) {
+            statsCounter.recordMiss();
+            return coldFetch(key).orElse(null);
         }
-        final Dated<V> dated = opDated.get();
-        final LocalDateTime now = timeSupplier.get();
+        recordAccess(key, entry);
+        final long now = ticker.read();
 
-        if (dated.isFresh(now)) {
-            return Optional.of(dated.getSubject());
+        if (entry.isFresh(now)) {
+            statsCounter.recordFreshHit();
+            return valueOf(key, entry);
         }
-        if (now.isBefore(nextSyncFetch(dated))) {
+        if (!entry.needsSyncFetch(now)) {
+            statsCounter.recordStaleHit();
             asyncFetch(key);
-            return Optional.of(dated.getSubject());
+            return valueOf(key, entry);
         }
-        return syncFetch(key, dated.getSubject());
+        statsCounter.recordSyncRefresh();
+        return syncFetch(key, entry).orElse(null);
     }
 
-    @SuppressWarnings("TypeMayBeWeakened")
-    private LocalDateTime nextSyncFetch(final Dated dated) {
-        return dated.getFetchTime().plus(cacheParameters.getSyncFetchPeriod());
+    /**
+     * Gets the values of several keys. Keys that are missing, or too old to be returned while
+     * refreshed, are fetched with one call to the batch source. Stale keys are returned and
+     * refreshed together in one asynchronous batch call. Without a batch source every key is
+     * fetched as by {@link #get(Object)}.
+     *
+     * @return the values of the keys that have one, keys the source has no value for are left out.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Map<K, V> getAll(final Collection<K> keys) {
+        final Map<K, V> values = new HashMap<>();
+        final Function<Set<K>, Map<K, V>> batch = batchSource;
+        if (batch == null) {
+            for (final K key : keys) {
+                get(key).ifPresent(value -> values.put(key, value));
+            }
+            return values;
+        }
+        final long now = ticker.read();
+        final Map<K, Optional<CacheEntry<V>>> toFetch = new HashMap<>();
+        final Set<K> toRefresh = new HashSet<>();
+        for (final K key : keys) {
+            final CacheEntry<V> entry = lookup(key);
+            if (entry == null) {
+                statsCounter.recordMiss();
+                toFetch.put(key, Optional.empty());
+                continue;
+            }
+            recordAccess(key, entry);
+            if (entry.isFresh(now)) {
+                statsCounter.recordFreshHit();
+                putIfPresent(values, key, entry);
+            } else if (!entry.needsSyncFetch(now)) {
+                statsCounter.recordStaleHit();
+                putIfPresent(values, key, entry);
+                toRefresh.add(key);
+            } else {
+                statsCounter.recordSyncRefresh();
+                toFetch.put(key, Optional.of(entry));
+            }
+        }
+        if (!toFetch.isEmpty()) {
+            values.putAll(syncBatchFetch(batch, toFetch));
+        }
+        if (!toRefresh.isEmpty()) {
+            asyncBatchFetch(batch, toRefresh);
+        }
+        return values;
     }
 
-    private void asyncFetch(final K key) {
-        if (currentlyFetching.mark(key, timeSupplier.get())) {
+    /**
+     * @param keys the keys to fetch, with their stale entry to fall back to if the source fails.
+     */
+    private Map<K, V> syncBatchFetch(final Function<Set<K>, Map<K, V>> batch, final Map<K, Optional<CacheEntry<V>>> keys) {
+        try {
+            return batchFetch(batch, keys.keySet());
+        } catch (final SupplierFailedException e) {
+            if (keys.values().stream().anyMatch(stale -> !stale.isPresent())) {
+                throw e;
+            }
+            final Map<K, V> stale = new HashMap<>();
+            keys.forEach((key, entry) -> putIfPresent(stale, key, entry.get()));
+            return stale;
+        }
+    }
+
+    private void putIfPresent(final Map<K, V> values, final K key, final CacheEntry<V> entry) {
+        final V value = valueOf(key, entry);
+        if (value != null) {
+            values.put(key, value);
+        }
+    }
+
+    private void asyncBatchFetch(final Function<Set<K>, Map<K, V>> batch, final Set<K> keys) {
+        final long now = ticker.read();
+        if ((circuitBreaker != null) && circuitBreaker.isRejecting(now)) {
+            return;
+        }
+        final Map<K, SingleFetchTracker.Mark> marked = new HashMap<>();
+        for (final K key : keys) {
+            final SingleFetchTracker.Mark mark = currentlyFetching.mark(key, now);
+            if (mark != null) {
+                marked.put(key, mark);
+            }
+        }
+        if (marked.isEmpty()) {
+            return;
+        }
+        try {
             CompletableFuture
-                    .supplyAsync(() -> syncFetch(key), executorService)
-                    .handle((Optional<V> v, Throwable e) -> currentlyFetching.unmark(key));
+                    .supplyAsync(() -> batchFetch(batch, marked.keySet()), refreshExecutor)
+                    .handle((Map<K, V> v, Throwable e) -> {
+                        marked.forEach(currentlyFetching::unmark);
+                        return null;
+                    });
+        } catch (final RejectedExecutionException e) {
+            // the refresh executor is saturated or shut down, keep serving the stale values
+            marked.forEach(currentlyFetching::unmark);
         }
     }
 
-    private Optional<V> syncFetch(final K key, final V defaultValue) {
+    private Map<K, V> batchFetch(final Function<Set<K>, Map<K, V>> batch, final Set<K> keys) {
+        if (!allowFetch()) {
+            throw new SupplierFailedException("Circuit breaker open, source not called for keys " + keys);
+        }
+        final long start = System.nanoTime();
         try {
-            return syncFetch(key);
-        } catch (final Exception e) {
-            return Optional.of(defaultValue);
+            final Map<K, V> fetched = batch.apply(keys);
+            statsCounter.recordLoad(System.nanoTime() - start);
+            fetchSucceeded();
+            fetched.forEach(this::putFetched);
+            if (negativePolicy != null) {
+                keys.stream().filter(key -> !fetched.containsKey(key)).forEach(this::putAbsent);
+            }
+            return fetched;
+        } catch (final RuntimeException e) {
+            statsCounter.recordFailure(System.nanoTime() - start);
+            recordFailure();
+            keys.forEach(this::updateNextFetchTime);
+            cacheParameters.getSupplierFailedAction().ifPresent(throwableConsumer -> keys.forEach(key -> throwableConsumer.accept(key, e)));
+            throw new SupplierFailedException("Source failed to get keys " + keys, e);
         }
     }
 
-    // fix only one active call per key
+    /**
+     * Refreshes the keys that are due to be refreshed ahead, if they have been read since they were
+     * fetched. Keys that have been stored again since they were polled are skipped, they have a
+     * new schedule.
+     */
+    void refreshAhead() {
+        if (refreshAheadScheduler == null) {
+            return;
+        }
+        final long now = ticker.read();
+        for (final K key : refreshAheadScheduler.pollDue(now)) {
+            final CacheEntry<V> entry = cache.get(key);
+            if ((entry != null) && refreshAheadScheduler.isDue(entry.getNextFetchAt(), now) && entry.isAccessed()) {
+                asyncFetch(key);
+            }
+        }
+    }
+
+    private void asyncFetch(final K key) {
+        final long now = ticker.read();
+        if ((circuitBreaker != null) && circuitBreaker.isRejecting(now)) {
+            return;
+        }
+        final SingleFetchTracker.Mark mark = currentlyFetching.mark(key, now);
+        if (mark != null) {
+            try {
+                CompletableFuture
+                        .supplyAsync(() -> loader.loadIfIdle(key, this::fetch), refreshExecutor)
+                        .handle((Boolean loaded, Throwable e) -> currentlyFetching.unmark(key, mark));
+            } catch (final RejectedExecutionException e) {
+                // the refresh executor is saturated or shut down, keep serving the stale value
+                currentlyFetching.unmark(key, mark);
+            }
+        }
+    }
+
+    /**
+     * Fetches the value, waiting at most the fetch timeout before returning the stale value. A
+     * fetch that times out is left to finish in the background and update the entry. A fetch the
+     * refresh executor rejects is not made, the stale value is returned at once, as it is while
+     * the circuit breaker is open.
+     */
+    private Optional<V> syncFetch(final K key, final CacheEntry<V> stale) {
+        if ((circuitBreaker != null) && circuitBreaker.isRejecting(ticker.read())) {
+            return Optional.ofNullable(valueOf(key, stale));
+        }
+        try {
+            return loader.load(key, this::fetchIfNotFresh, refreshExecutor, fetchTimeoutNanos);
+        } catch (final TimeoutException | RuntimeException e) {
+            return Optional.ofNullable(valueOf(key, stale));
+        }
+    }
+
+    /**
+     * Fetches the value from the source. Concurrent fetches of the same key share one source call.
+     */
     private Optional<V> syncFetch(final K key) {
+        return loader.load(key, this::fetchIfNotFresh);
+    }
+
+    /**
+     * Fetches a key that has no value to fall back to, hedging the source call if configured.
+     */
+    private Optional<V> coldFetch(final K key) {
+        final HedgedSource<K, V> hedged = hedgedSource;
+        if (hedged == null) {
+            return syncFetch(key);
+        }
+        return loader.load(key, k -> fetchIfNotFresh(k, hedged::applyHedged));
+    }
+
+    private Optional<V> fetch(final K key) {
+        return fetch(key, source);
+    }
+
+    private Optional<V> fetchIfNotFresh(final K key) {
+        return fetchIfNotFresh(key, source);
+    }
+
+    /**
+     * Fetches the key unless a fresh entry has been stored since the caller looked it up, by a
+     * load that finished before the caller could join it.
+     */
+    private Optional<V> fetchIfNotFresh(final K key, final Function<K, Optional<V>> from) {
+        final CacheEntry<V> entry = cache.get(key);
+        if ((entry != null) && entry.isFresh(ticker.read())) {
+            return Optional.ofNullable(valueOf(key, entry));
+        }
+        return fetch(key, from);
+    }
+
+    private Optional<V> fetch(final K key, final Function<K, Optional<V>> from) {
+        if (!allowFetch()) {
+            throw circuitOpen(key);
+        }
+        final long start = System.nanoTime();
         try {
-            final Optional<V> fetched = source.apply(key);
-            fetched.ifPresent(v -> put(key, v));
+            final Optional<V> fetched = from.apply(key);
+            statsCounter.recordLoad(System.nanoTime() - start);
+            store(key, fetched);
             return fetched;
         } catch (final RuntimeException e) {
-            updateNextFetchTime(key);
-            cacheParameters.getSupplierFailedAction().ifPresent(throwableConsumer -> throwableConsumer.accept(key, e));
-            throw new SupplierFailedException(getSupplierFailedMessage(key), e);
+            statsCounter.recordFailure(System.nanoTime() - start);
+            throw fetchFailed(key, e);
+        }
+    }
+
+    /**
+     * Postpones the next fetch of the key and reports the failure.
+     *
+     * @return the exception to throw to the caller.
+     */
+    SupplierFailedException fetchFailed(final K key, final Throwable e) {
+        recordFailure();
+        updateNextFetchTime(key);
+        cacheParameters.getSupplierFailedAction().ifPresent(throwableConsumer -> throwableConsumer.accept(key, e));
+        return new SupplierFailedException(getSupplierFailedMessage(key), e);
+    }
+
+    /**
+     * @return false if the circuit breaker is open and the source should not be called.
+     */
+    boolean allowFetch() {
+        return (circuitBreaker == null) || circuitBreaker.allowRequest(ticker.read());
+    }
+
+    SupplierFailedException circuitOpen(final K key) {
+        return new SupplierFailedException("Circuit breaker open, source not called for key " + key);
+    }
+
+    private void fetchSucceeded() {
+        if (circuitBreaker != null) {
+            circuitBreaker.recordSuccess();
+        }
+    }
+
+    private void recordFailure() {
+        if (circuitBreaker != null) {
+            circuitBreaker.recordFailure(ticker.read());
         }
     }
 
     private void updateNextFetchTime(final K key) {
-        final Dated<V> dated = cache.get(key);
-        if (dated != null) {
-            cache.put(key, createFailedDated(dated.getSubject(), timeSupplier.get()));
+        final CacheEntry<V> updated = cache.computeIfPresent(key, (k, entry) -> createFailedEntry(entry, ticker.read()));
+        if (updated != null) {
+            scheduleExpiry(key, updated);
+        }
+    }
+
+    private CacheEntry<V> createFailedEntry(final CacheEntry<V> entry, final long now) {
+        final int failures = entry.getFailures() + 1;
+        final long syncFetchAt = now + (entry.getSyncFetchAt() - entry.getFetchedAt());
+        return entry.withFetchTimes(now, now + backoffNanos(failures), syncFetchAt, failures);
+    }
+
+    /**
+     * @return the async fetch period doubled for each consecutive failure, up to the maximum
+     * backoff period, with jitter in its upper half. Just the async fetch period if not backing off.
+     */
+    private long backoffNanos(final int failures) {
+        if (maximumBackoffNanos == 0) {
+            return jittered(asyncFetchNanos);
         }
+        final int doublings = Math.min(failures - 1, Long.numberOfLeadingZeros(asyncFetchNanos) - 1);
+        final long backoff = Math.min(asyncFetchNanos << doublings, maximumBackoffNanos);
+        return (backoff / 2) + ThreadLocalRandom.current().nextLong((backoff / 2) + 1);
     }
 
-    private Dated<V> createFailedDated(final V value, final LocalDateTime now) {
-        return Dated.sucessful(value, FetchedAt.of(now), NextFetchTime.of(now.plus(cacheParameters.getAsyncFetchPeriod())));
+    /**
+     * @return the period shortened by a random part of at most the fetch jitter.
+     */
+    private long jittered(final long periodNanos) {
+        if (fetchJitter == 0) {
+            return periodNanos;
+        }
+        return periodNanos - (long) (periodNanos * fetchJitter * ThreadLocalRandom.current().nextDouble());
     }
 
     private String getSupplierFailedMessage(final K key) {
@@ -125,32 +607,419 @@ public final class FaultTolerantCache<K, V> {
 
     @SuppressWarnings("WeakerAccess")
     public Optional<V> getIfPresent(final K key) {
-        return Optional.ofNullable(cache.get(key)).map(Dated::getSubject);
+        final Optional<CacheEntry<V>> opEntry = Optional.ofNullable(peek(key));
+        opEntry.ifPresent(entry -> recordAccess(key, entry));
+        return opEntry.map(entry -> valueOf(key, entry));
+    }
+
+    /**
+     * @return the cached value with its fetch times, without fetching or refreshing it.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Optional<Dated<V>> getDatedIfPresent(final K key) {
+        final CacheEntry<V> entry = peek(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        return entry.toDated(timeSupplier.get(), ticker.read());
     }
 
     @SuppressWarnings("WeakerAccess")
     public void put(final K key, final V value) {
-        cache.put(key, createSuccessfulDated(value, timeSupplier.get()));
+        final int weight = weigh(key, value);
+        final CacheEntry<V> entry = createSuccessfulEntry(key, value, ticker.read());
+        stored(key, weight, entry, cache.put(key, entry));
+    }
+
+    /**
+     * Stores a value fetched from the source, fresh for the adaptive refresh period if enabled.
+     */
+    private void putFetched(final K key, final V value) {
+        final int weight = weigh(key, value);
+        final long now = ticker.read();
+        final long fetchNanos = adaptiveFetchNanos(cache.get(key), value, asyncFetchNanos(key, value));
+        final CacheEntry<V> entry = createEntry(value, now, now + jittered(fetchNanos), fetchNanos, now + syncFetchNanos(key, value));
+        stored(key, weight, entry, cache.put(key, entry));
+    }
+
+    /**
+     * @return the refresh period of the previous entry, before jitter, doubled up to the maximum
+     * adaptive period if the value is unchanged, else halved down to the async fetch period of the
+     * value. Taking the period before jitter keeps the jitter from compounding over refreshes. The
+     * async fetch period if not adaptive or if the previous entry has no value or failed to refresh.
+     */
+    private long adaptiveFetchNanos(@Nullable final CacheEntry<V> previous, final V value, final long fetchNanos) {
+        if ((valueEquality == null) || (previous == null) || (previous.getFailures() > 0)) {
+            return fetchNanos;
+        }
+        final V previousValue = previous.getValue();
+        if (previousValue == null) {
+            return fetchNanos;
+        }
+        final long previousNanos = previous.getFetchNanos();
+        if (valueEquality.test(previousValue, value)) {
+            return Math.max((previousNanos > (maximumAdaptiveFetchNanos / 2)) ? maximumAdaptiveFetchNanos : (previousNanos * 2), fetchNanos);
+        }
+        return Math.max(previousNanos / 2, fetchNanos);
+    }
+
+    private long asyncFetchNanos(final K key, final V value) {
+        return (expiry == null) ? asyncFetchNanos : expiry.asyncFetchPeriod(key, value).toNanos();
+    }
+
+    private long syncFetchNanos(final K key, final V value) {
+        return (expiry == null) ? syncFetchNanos : expiry.syncFetchPeriod(key, value).toNanos();
+    }
+
+    /**
+     * @return the value of the entry, or of the entry that replaced it if the entry was released
+     * and its off heap chunk reused before it could be read. Null if the key has no value.
+     */
+    @Nullable
+    V valueOf(final K key, final CacheEntry<V> entry) {
+        CacheEntry<V> current = entry;
+        V value = current.getValue();
+        while ((value == null) && !current.isAbsent()) {
+            current = peek(key);
+            if (current == null) {
+                return null;
+            }
+            value = current.getValue();
+        }
+        return value;
+    }
+
+    /**
+     * Adds an entry restored from a snapshot, unless the key already has one.
+     *
+     * @return true if the entry was added, false if the key already had one.
+     */
+    boolean restore(final K key, final V value, final long fetchedAt, final long nextFetchAt) {
+        return restore(key, value, fetchedAt, nextFetchAt, nextFetchAt - fetchedAt, fetchedAt + syncFetchNanos(key, value));
+    }
+
+    private boolean restore(final K key, final V value, final long fetchedAt, final long nextFetchAt, final long fetchNanos, final long syncFetchAt) {
+        final int weight = weigh(key, value);
+        final CacheEntry<V> entry = createEntry(value, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt);
+        if (cache.putIfAbsent(key, entry) == null) {
+            stored(key, weight, entry, null);
+            return true;
+        }
+        entry.release();
+        return false;
+    }
+
+    void forEachEntry(final BiConsumer<K, CacheEntry<V>> action) {
+        cache.forEach(action);
+    }
+
+    /**
+     * @return the weight of the value, checked before the entry is stored so that a weigher failing
+     * leaves the cache unchanged. Zero if the cache is not bounded.
+     * @throws IllegalArgumentException if the weigher returns a negative weight.
+     */
+    private int weigh(final K key, final V value) {
+        if (policy == null) {
+            return 0;
+        }
+        final int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight " + weight + " less than zero for key " + key);
+        }
+        return weight;
+    }
+
+    private void stored(final K key, final int weight, final CacheEntry<V> entry, @Nullable final CacheEntry<V> previous) {
+        if (previous != null) {
+            previous.release();
+        }
+        scheduleExpiry(key, entry);
+        if (refreshAheadScheduler != null) {
+            refreshAheadScheduler.schedule(key, entry.getNextFetchAt());
+        }
+        if ((negativePolicy != null) && (previous != null) && previous.isAbsent()) {
+            negativePolicy.recordRemoval(key);
+        }
+        if (policy != null) {
+            policy.recordWrite(key, weight, k -> evict(k, false));
+        }
+    }
+
+    /**
+     * Stores a value fetched from the source, or remembers its absence if negative caching is enabled.
+     */
+    void store(final K key, final Optional<V> fetched) {
+        fetchSucceeded();
+        if (fetched.isPresent()) {
+            putFetched(key, fetched.get());
+        } else {
+            putAbsent(key);
+        }
+    }
+
+    /**
+     * Remembers that the source has no value for the key, for the negative cache period. The key
+     * is dropped from the second tier even without negative caching, so an old value found there
+     * does not come back.
+     */
+    private void putAbsent(final K key) {
+        if (secondTier != null) {
+            secondTier.invalidate(key);
+        }
+        if (negativePolicy == null) {
+            return;
+        }
+        final long now = ticker.read();
+        final CacheEntry<V> absent = CacheEntry.absent(now, now + negativeCacheNanos);
+        final CacheEntry<V> previous = cache.put(key, absent);
+        if (previous != null) {
+            previous.release();
+        }
+        if (refreshAheadScheduler != null) {
+            refreshAheadScheduler.remove(key);
+        }
+        scheduleExpiry(key, absent);
+        if ((policy != null) && (previous != null) && !previous.isAbsent()) {
+            policy.recordRemoval(key);
+        }
+        negativePolicy.recordWrite(key, 1, k -> evict(k, true));
+    }
+
+    /**
+     * Removes the key if its entry is still of the kind the evicting policy keeps track of.
+     */
+    private void evict(final K key, final boolean absent) {
+        cache.computeIfPresent(key, (k, entry) -> {
+            if (entry.isAbsent() != absent) {
+                return entry;
+            }
+            final V value = entry.getValue();
+            if ((secondTier != null) && (value != null)) {
+                secondTier.demote(key, value, entry.getFetchedAt(), entry.getNextFetchAt(), entry.getFetchNanos(), entry.getSyncFetchAt());
+            }
+            if (expiryWheel != null) {
+                expiryWheel.remove(key);
+            }
+            if (refreshAheadScheduler != null) {
+                refreshAheadScheduler.remove(key);
+            }
+            entry.release();
+            return null;
+        });
+    }
+
+    /**
+     * @return the entry of the key, from the second tier if it is not in this one, in which case
+     * it is moved to this tier.
+     */
+    @Nullable
+    private CacheEntry<V> lookup(final K key) {
+        final CacheEntry<V> entry = cache.get(key);
+        if ((entry != null) || (secondTier == null)) {
+            return entry;
+        }
+        final CacheEntry<V> secondTierEntry = secondTier.getEntry(key);
+        final V value = (secondTierEntry != null) ? secondTierEntry.getValue() : null;
+        if (value == null) {
+            return null;
+        }
+        restore(key, value, secondTierEntry.getFetchedAt(), secondTierEntry.getNextFetchAt(), secondTierEntry.getFetchNanos(), secondTierEntry.getSyncFetchAt());
+        return cache.get(key);
+    }
+
+    /**
+     * @return the entry of the key, from the second tier if it is not in this one, without moving
+     * it to this tier. For reads that only look at the cache.
+     */
+    @Nullable
+    private CacheEntry<V> peek(final K key) {
+        final CacheEntry<V> entry = cache.get(key);
+        if ((entry != null) || (secondTier == null)) {
+            return entry;
+        }
+        return secondTier.peek(key);
+    }
+
+    /**
+     * Stores an entry evicted from the tier in front of this one, replacing any older entry.
+     */
+    private void demote(final K key, final V value, final long fetchedAt, final long nextFetchAt, final long fetchNanos, final long syncFetchAt) {
+        final int weight = weigh(key, value);
+        final CacheEntry<V> entry = createEntry(value, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt);
+        stored(key, weight, entry, cache.put(key, entry));
+    }
+
+    private void invalidate(final K key) {
+        final CacheEntry<V> removed = cache.remove(key);
+        if (removed != null) {
+            if (expiryWheel != null) {
+                expiryWheel.remove(key);
+            }
+            removed(key, removed);
+        }
+    }
+
+    private void removed(final K key, final CacheEntry<V> removed) {
+        removed.release();
+        if (refreshAheadScheduler != null) {
+            refreshAheadScheduler.remove(key);
+        }
+        final TinyLfuPolicy<K> removedPolicy = removed.isAbsent() ? negativePolicy : policy;
+        if (removedPolicy != null) {
+            removedPolicy.recordRemoval(key);
+        }
+    }
+
+    private void scheduleExpiry(final K key, final CacheEntry<V> entry) {
+        if (expiryWheel != null) {
+            expiryWheel.schedule(key, expiresAt(entry));
+        }
+    }
+
+    /**
+     * @return when the entry has not been fetched for the maximum staleness, but not before it
+     * needs a sync fetch, so that values valid for longer are kept until then.
+     */
+    private long expiresAt(final CacheEntry<V> entry) {
+        final long staleAt = entry.getFetchedAt() + maximumStalenessNanos;
+        return ((entry.getSyncFetchAt() - staleAt) > 0) ? entry.getSyncFetchAt() : staleAt;
+    }
+
+    /**
+     * Removes the entries fetched longer than the maximum staleness ago and past their sync fetch
+     * time. Only the keys due in the expiry wheel are looked at, not the whole cache.
+     */
+    void sweep() {
+        if (expiryWheel == null) {
+            return;
+        }
+        final long now = ticker.read();
+        for (final K key : expiryWheel.advance(now)) {
+            final CacheEntry<V> entry = cache.get(key);
+            if (entry == null) {
+                continue;
+            }
+            if (((now - expiresAt(entry)) >= 0) && cache.remove(key, entry)) {
+                removed(key, entry);
+            } else {
+                scheduleExpiry(key, entry);
+            }
+        }
+    }
+
+    /**
+     * @return the entry of the key, recording the access, for the caches built on this one.
+     */
+    @Nullable
+    CacheEntry<V> getEntry(final K key) {
+        final CacheEntry<V> entry = lookup(key);
+        if (entry != null) {
+            recordAccess(key, entry);
+        }
+        return entry;
+    }
+
+    long now() {
+        return ticker.read();
+    }
+
+    StatsCounter statsCounter() {
+        return statsCounter;
+    }
+
+    /**
+     * @return the statistics of the cache since it was created. Source call latencies are measured
+     * in real time, whatever {@link Ticker} the cache uses.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public CacheStats stats() {
+        return statsCounter.snapshot();
     }
 
-    private Dated<V> createSuccessfulDated(final V value, final LocalDateTime now) {
-        return Dated.sucessful(value, FetchedAt.of(now), NextFetchTime.of(now.plus(cacheParameters.getAsyncFetchPeriod())));
+    boolean needsSyncFetch(final CacheEntry<V> entry, final long now) {
+        return entry.needsSyncFetch(now);
+    }
+
+    private void recordAccess(final K key, final CacheEntry<V> entry) {
+        entry.markAccessed();
+        final TinyLfuPolicy<K> entryPolicy = entry.isAbsent() ? negativePolicy : policy;
+        if (entryPolicy != null) {
+            entryPolicy.recordAccess(key);
+        }
     }
 
+    private CacheEntry<V> createSuccessfulEntry(final K key, final V value, final long now) {
+        final long fetchNanos = asyncFetchNanos(key, value);
+        return createEntry(value, now, now + jittered(fetchNanos), fetchNanos, now + syncFetchNanos(key, value));
+    }
+
+    private CacheEntry<V> createEntry(final V value, final long fetchedAt, final long nextFetchAt, final long fetchNanos, final long syncFetchAt) {
+        if (offHeapStore != null) {
+            return offHeapStore.entry(value, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt, 0);
+        }
+        return new CacheEntry<>(value, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt, 0);
+    }
+
+    /**
+     * @return the cached values of the keys, fresh or not, without fetching or refreshing them.
+     */
     @SuppressWarnings("WeakerAccess")
     public Map<K, V> getPresent(final Collection<K> keys) {
-        return cache.entrySet().stream()
-                .filter(e -> keys.contains(e.getKey()))
-                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getSubject()));
+        return getPresent(keys, entry -> true);
     }
 
+    /**
+     * @return the cached values of the keys that are fresh, without fetching or refreshing them.
+     */
     @SuppressWarnings("WeakerAccess")
     public Map<K, V> getPresentFresh(final Collection<K> keys) {
-        final LocalDateTime now = timeSupplier.get();
-        return cache.entrySet().stream()
-                .filter(e -> keys.contains(e.getKey()))
-                .filter(e -> e.getValue().isFresh(now))
-                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getSubject()));
+        final long now = ticker.read();
+        return getPresent(keys, entry -> entry.isFresh(now));
+    }
+
+    /**
+     * Looks up each key, so the cost depends on the number of keys and not on the size of the
+     * cache. Very large key collections are looked up in parallel.
+     */
+    private Map<K, V> getPresent(final Collection<K> keys, final Predicate<CacheEntry<V>> include) {
+        if (keys.size() >= PARALLEL_LOOKUP_THRESHOLD) {
+            final Map<K, V> present = new ConcurrentHashMap<>();
+            keys.parallelStream().forEach(key -> addIfPresent(present, key, include));
+            return present;
+        }
+        final Map<K, V> present = new HashMap<>();
+        for (final K key : keys) {
+            addIfPresent(present, key, include);
+        }
+        return present;
+    }
+
+    private void addIfPresent(final Map<K, V> present, final K key, final Predicate<CacheEntry<V>> include) {
+        final CacheEntry<V> entry = peek(key);
+        if ((entry != null) && include.test(entry)) {
+            putIfPresent(present, key, entry);
+        }
+    }
+
+    /**
+     * Stops refreshing ahead and shuts down the refresh executor if it was created by this cache.
+     * An executor given in the {@link CacheParameters} is left running. The cache can still be used
+     * after it is closed but stale values are then only refreshed synchronously.
+     */
+    @Override
+    public void close() {
+        if (secondTier != null) {
+            secondTier.close();
+        }
+        if (refreshAheadTask != null) {
+            refreshAheadTask.cancel(false);
+        }
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
     }
 
 }
@@ -0,0 +1,220 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A source that records the latency of its calls, and that can hedge a call: if it has not
+ * returned within a percentile of the recorded latencies a second call is started, the first to
+ * return a value is used and the other is cancelled. At most a fraction of all calls are hedged.
+ *
+ * Latencies are measured with {@link System#nanoTime()}, as the calls are waited for in real time
+ * whatever {@link Ticker} the cache uses.
+ */
+final class HedgedSource<K, V> implements Function<K, Optional<V>> {
+
+    /**
+     * The number of latencies recorded before calls are hedged, so that the percentile means
+     * something.
+     */
+    static final int MINIMUM_SAMPLES = 20;
+
+    private final Function<K, Optional<V>> source;
+    private final Executor executor;
+    private final double percentile;
+    private final double budget;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+
+    /**
+     * @param percentile the percentile of the recorded latencies after which a call is hedged,
+     * between 0 and 1.
+     * @param budget the largest fraction of all calls that may be hedged, between 0 and 1.
+     */
+    HedgedSource(final Function<K, Optional<V>> source, final Executor executor, final double percentile, final double budget) {
+        this.source = source;
+        this.executor = executor;
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    @Override
+    public Optional<V> apply(final K key) {
+        calls.increment();
+        return timed(key);
+    }
+
+    /**
+     * Calls the source on the calling thread, hedging the call on the executor if it is slow. If
+     * the hedge returns first the calling thread is interrupted to cancel its call. Does not hedge
+     * until enough latencies are recorded, or if the executor rejects the hedge.
+     */
+    Optional<V> applyHedged(final K key) {
+        calls.increment();
+        if (latencies.count() < MINIMUM_SAMPLES) {
+            return timed(key);
+        }
+        final Hedge hedge = new Hedge(key, Thread.currentThread());
+        final ScheduledFuture<?> timer = RefreshExecutors.scheduler().schedule(hedge, latencies.percentile(percentile), TimeUnit.NANOSECONDS);
+        try {
+            @Nullable Optional<V> value = null;
+            @Nullable RuntimeException failure = null;
+            try {
+                value = timed(key);
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+            if (hedge.primaryDone() || ((failure != null) && hedge.isRunning())) {
+                return join(hedge.result);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return value;
+        } finally {
+            timer.cancel(false);
+            hedge.cancel();
+        }
+    }
+
+    private Optional<V> timed(final K key) {
+        final long start = System.nanoTime();
+        final Optional<V> value = source.apply(key);
+        latencies.record(System.nanoTime() - start);
+        return value;
+    }
+
+    private static <T> T join(final CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (final CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private static RuntimeException unwrap(final Throwable e) {
+        return (e instanceof RuntimeException) ? (RuntimeException) e : new CompletionException(e);
+    }
+
+    /**
+     * The second call of a hedged call, started on the executor when the percentile latency has
+     * passed. If it returns a value while the first call is still running on the calling thread,
+     * the calling thread is interrupted, only while it is still in that call.
+     */
+    private final class Hedge implements Runnable {
+
+        private static final int PRIMARY_RUNNING = 0;
+        private static final int PRIMARY_DONE = 1;
+        private static final int INTERRUPTING = 2;
+        private static final int INTERRUPTED = 3;
+
+        private final K key;
+        private final Thread caller;
+        private final CompletableFuture<Optional<V>> result = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(PRIMARY_RUNNING);
+        @Nullable
+        private volatile FutureTask<Optional<V>> call;
+
+        Hedge(final K key, final Thread caller) {
+            this.key = key;
+            this.caller = caller;
+        }
+
+        @Override
+        public void run() {
+            if ((state.get() != PRIMARY_RUNNING) || (hedges.sum() >= (budget * calls.sum()))) {
+                return;
+            }
+            hedges.increment();
+            final FutureTask<Optional<V>> task = new FutureTask<Optional<V>>(() -> timed(key)) {
+                @Override
+                protected void done() {
+                    completed(this);
+                }
+            };
+            call = task;
+            try {
+                executor.execute(task);
+            } catch (final RejectedExecutionException e) {
+                call = null;
+            }
+        }
+
+        private void completed(final FutureTask<Optional<V>> task) {
+            if (task.isCancelled()) {
+                return;
+            }
+            try {
+                if (result.complete(task.get()) && state.compareAndSet(PRIMARY_RUNNING, INTERRUPTING)) {
+                    caller.interrupt();
+                    state.set(INTERRUPTED);
+                }
+            } catch (final ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Called on the calling thread when its call has returned or failed, so that it is not
+         * interrupted after that.
+         *
+         * @return true if the hedge returned first, the interrupt of the calling thread is then
+         * cleared.
+         */
+        boolean primaryDone() {
+            if (state.compareAndSet(PRIMARY_RUNNING, PRIMARY_DONE)) {
+                return false;
+            }
+            while (state.get() == INTERRUPTING) {
+                Thread.yield();
+            }
+            Thread.interrupted();
+            return true;
+        }
+
+        boolean isRunning() {
+            final FutureTask<Optional<V>> running = call;
+            return (running != null) && !running.isDone();
+        }
+
+        void cancel() {
+            final FutureTask<Optional<V>> running = call;
+            if (running != null) {
+                running.cancel(true);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A cache entry with its value in an {@link OffHeapStore}, decoded each time it is read.
+ *
+ * When the entry is replaced or removed it is {@link #release() released} and its chunk freed for
+ * reuse. The entry keeps the stamp its chunk had when written, so a reader still holding the
+ * entry after the chunk is reused gets null, and looks up the entry that replaced it instead.
+ */
+final class OffHeapEntry<V> extends CacheEntry<V> {
+
+    private final OffHeapStore<V> store;
+    private final long address;
+    private final int stamp;
+    private volatile boolean freed;
+
+    OffHeapEntry(final OffHeapStore<V> store, final long address, final int stamp, final long fetchedAt, final long nextFetchAt, final long fetchNanos, final long syncFetchAt, final int failures) {
+        super(null, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt, failures);
+        this.store = store;
+        this.address = address;
+        this.stamp = stamp;
+    }
+
+    /**
+     * @return the value, or null if the entry was released and its chunk reused.
+     */
+    @Nullable
+    @Override
+    V getValue() {
+        return store.read(this);
+    }
+
+    @Override
+    boolean isAbsent() {
+        return false;
+    }
+
+    /**
+     * @return an entry reading the same chunk, which is neither decoded nor copied.
+     */
+    @Override
+    CacheEntry<V> withFetchTimes(final long fetchedAt, final long nextFetchAt, final long syncFetchAt, final int failures) {
+        return new OffHeapEntry<>(store, address, stamp, fetchedAt, nextFetchAt, getFetchNanos(), syncFetchAt, failures);
+    }
+
+    @Override
+    void release() {
+        if (freed) {
+            return;
+        }
+        freed = true;
+        store.free(address);
+    }
+
+    long getAddress() {
+        return address;
+    }
+
+    int getStamp() {
+        return stamp;
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Stores encoded values outside the heap, in direct {@link ByteBuffer} slabs, so that many cached
+ * values do not fill the old generation. Each value is stored in a chunk of the smallest power of
+ * two size that fits it, its length and a stamp. Freed chunks are reused for values of the same
+ * size class, and the stamp of a chunk is changed each time it is reused, so that a reader holding
+ * a released entry finds that its value is gone rather than reading another value.
+ *
+ * Chunks are only written under the write lock, so readers read optimistically and retry if a
+ * chunk may have been reused while they read it.
+ */
+final class OffHeapStore<V> {
+
+    static final int MAXIMUM_SLAB_SIZE = 1 << 24;
+    private static final int MINIMUM_CHUNK_BITS = 4;
+    private static final int STAMP_BYTES = Integer.BYTES;
+    private static final int HEADER_BYTES = STAMP_BYTES + Integer.BYTES;
+
+    private final Codec<V> codec;
+    private final long capacity;
+    private final int slabSize;
+    private final StampedLock lock = new StampedLock();
+    private final LongStack[] freeChunks;
+
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int nextOffset;
+
+    /**
+     * @param capacity the most bytes to allocate for slabs.
+     */
+    OffHeapStore(final Codec<V> codec, final long capacity) {
+        this.codec = codec;
+        this.capacity = capacity;
+        slabSize = (int) Math.min(capacity, MAXIMUM_SLAB_SIZE);
+        freeChunks = new LongStack[Integer.SIZE];
+        for (int i = 0; i < freeChunks.length; i++) {
+            freeChunks[i] = new LongStack();
+        }
+        nextOffset = slabSize;
+    }
+
+    /**
+     * @return an entry with the value stored off heap, or on the heap if it does not fit in the
+     * remaining capacity.
+     */
+    CacheEntry<V> entry(final V value, final long fetchedAt, final long nextFetchAt, final long fetchNanos, final long syncFetchAt, final int failures) {
+        final long address = allocate(codec.encode(value));
+        if (address < 0) {
+            return new CacheEntry<>(value, fetchedAt, nextFetchAt, fetchNanos, syncFetchAt, failures);
+        }
+        return new OffHeapEntry<>(this, address, stamp(address), fetchedAt, nextFetchAt, fetchNanos, syncFetchAt, failures);
+    }
+
+    private long allocate(final byte[] bytes) {
+        final int chunkBits = chunkBits(HEADER_BYTES + bytes.length);
+        if (chunkBits < 0) {
+            return -1;
+        }
+        final long stamp = lock.writeLock();
+        try {
+            final LongStack free = freeChunks[chunkBits];
+            final long address = free.isEmpty() ? allocateChunk(1 << chunkBits) : free.pop();
+            if (address >= 0) {
+                final ByteBuffer chunk = slabs[slabIndex(address)].duplicate();
+                chunk.position(offset(address));
+                chunk.putInt(chunk.getInt(offset(address)) + 1);
+                chunk.putInt(bytes.length);
+                chunk.put(bytes);
+            }
+            return address;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private long allocateChunk(final int chunkSize) {
+        if ((nextOffset + chunkSize) > slabSize) {
+            if ((((long) slabs.length + 1) * slabSize) > capacity) {
+                return -1;
+            }
+            final ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+            grown[slabs.length] = ByteBuffer.allocateDirect(slabSize);
+            slabs = grown;
+            nextOffset = 0;
+        }
+        final long address = (((long) slabs.length - 1) << Integer.SIZE) | nextOffset;
+        nextOffset += chunkSize;
+        return address;
+    }
+
+    /**
+     * @return the number of bits of the smallest chunk that holds the bytes, or -1 if larger than a
+     * slab.
+     */
+    private int chunkBits(final int bytes) {
+        final int bits = Math.max(MINIMUM_CHUNK_BITS, Integer.SIZE - Integer.numberOfLeadingZeros(bytes - 1));
+        return ((bits < (Integer.SIZE - 1)) && ((1 << bits) <= slabSize)) ? bits : -1;
+    }
+
+    /**
+     * @return the stamp of the chunk, only read by the thread that allocated it before the entry
+     * is published.
+     */
+    private int stamp(final long address) {
+        return slabs[slabIndex(address)].getInt(offset(address));
+    }
+
+    /**
+     * @return the value of the entry, or null if its chunk was freed and reused before it could be
+     * read.
+     */
+    @Nullable
+    V read(final OffHeapEntry<V> entry) {
+        long stamp = lock.tryOptimisticRead();
+        @Nullable byte[] bytes = copy(entry.getAddress(), entry.getStamp());
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                bytes = copy(entry.getAddress(), entry.getStamp());
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return (bytes == null) ? null : codec.decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Copies the stored bytes, or returns null if the chunk has been reused since it was stamped.
+     * The bytes may be garbage if the chunk is being reused, in which case the read is not
+     * validated and retried.
+     */
+    @Nullable
+    private byte[] copy(final long address, final int expectedStamp) {
+        final ByteBuffer chunk = slabs[slabIndex(address)].duplicate();
+        final int offset = offset(address);
+        if (chunk.getInt(offset) != expectedStamp) {
+            return null;
+        }
+        final int length = chunk.getInt(offset + STAMP_BYTES);
+        if ((length < 0) || (length > (slabSize - offset - HEADER_BYTES))) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        chunk.position(offset + HEADER_BYTES);
+        chunk.get(bytes);
+        return bytes;
+    }
+
+    void free(final long address) {
+        final long stamp = lock.writeLock();
+        try {
+            final int length = slabs[slabIndex(address)].getInt(offset(address) + STAMP_BYTES);
+            freeChunks[chunkBits(HEADER_BYTES + length)].push(address);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static int slabIndex(final long address) {
+        return (int) (address >>> Integer.SIZE);
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private static final class LongStack {
+
+        private long[] values = new long[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(final long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+
+    }
+
+}
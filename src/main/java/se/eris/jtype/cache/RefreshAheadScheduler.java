@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.util.List;
+
+/**
+ * Keys by the {@link Ticker} reading at which they should be refreshed ahead of their next fetch
+ * time. Each key has one schedule in a {@link TimerWheel}, storing it again moves the schedule and
+ * removing it from the cache removes the schedule.
+ */
+final class RefreshAheadScheduler<K> {
+
+    private final TimerWheel<K> wheel;
+    private final long refreshAheadNanos;
+
+    /**
+     * @param now the current {@link Ticker} reading.
+     */
+    RefreshAheadScheduler(final long refreshAheadNanos, final long now) {
+        this.wheel = new TimerWheel<>(now);
+        this.refreshAheadNanos = refreshAheadNanos;
+    }
+
+    void schedule(final K key, final long nextFetchAt) {
+        wheel.schedule(key, nextFetchAt - refreshAheadNanos);
+    }
+
+    void remove(final K key) {
+        wheel.remove(key);
+    }
+
+    int size() {
+        return wheel.size();
+    }
+
+    /**
+     * @return the keys due to be refreshed, which are no longer scheduled.
+     */
+    List<K> pollDue(final long now) {
+        return wheel.advance(now);
+    }
+
+    /**
+     * @return true if an entry with the next fetch time is due to be refreshed ahead, false if it
+     * was stored again after it was polled.
+     */
+    boolean isDue(final long nextFetchAt, final long now) {
+        return (now - (nextFetchAt - refreshAheadNanos)) >= 0;
+    }
+
+}
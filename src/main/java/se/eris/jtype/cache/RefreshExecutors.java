@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the asynchronous refreshes of {@link FaultTolerantCache}.
+ *
+ * A refresh that is rejected because the executor is saturated (or shut down) is simply not
+ * done, the cache keeps serving the stale value and tries again on a later get. So the executors
+ * here reject rather than queue without limit or run the refresh on the calling thread.
+ */
+public final class RefreshExecutors {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private RefreshExecutors() {
+    }
+
+    /**
+     * @return the single daemon thread shared by all caches for periodic work, like finding keys
+     * to refresh ahead. The work itself is handed to the refresh executor of each cache.
+     */
+    static ScheduledExecutorService scheduler() {
+        return SchedulerHolder.SCHEDULER;
+    }
+
+    /**
+     * @return a scheduler with a daemon thread of its own, for periodic work too slow for the
+     * shared scheduler. Once shut down, its periodic tasks keep running until they are cancelled
+     * and the thread is stopped when the last is.
+     */
+    static ScheduledThreadPoolExecutor dedicatedScheduler(final String name) {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, daemonThreadFactory(name));
+        scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(true);
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    public static ExecutorService bounded() {
+        return bounded(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @return an executor with at most the given number of daemon threads, that are stopped when
+     * idle, and a bounded queue. Tasks that do not fit are rejected. Suitable for sharing between
+     * several caches.
+     */
+    public static ExecutorService bounded(final int threads, final int queueSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                daemonThreadFactory("fault-tolerant-cache-refresh-" + POOL_NUMBER.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class SchedulerHolder {
+        private static final ScheduledExecutorService SCHEDULER =
+                Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("fault-tolerant-cache-scheduler"));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+import se.eris.jtype.cache.dated.Dated;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * A {@link FaultTolerantCache} split into independent segments by the hash of the keys. Each
+ * segment has its own entries, fetch bookkeeping and eviction policy, so that threads reading and
+ * refreshing keys of different segments do not contend. The bounds of the {@link CacheParameters}
+ * are divided evenly between the segments, and all segments refresh on the same executor. The
+ * circuit breaker and the hedged source are shared, as all segments call the same source.
+ */
+public final class ShardedFaultTolerantCache<K, V> implements AutoCloseable {
+
+    private final FaultTolerantCache<K, V>[] segments;
+    private final int mask;
+    @Nullable
+    private final ExecutorService ownedExecutor;
+
+    /**
+     * @param segments the number of segments, rounded up to a power of two. About the number of
+     * threads using the cache concurrently is a good start.
+     */
+    public static <K, V> ShardedFaultTolerantCache<K, V> of(final Function<K, Optional<V>> source, final CacheParameters<K, V> cacheParameters, final int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("Segments " + segments + " less than one");
+        }
+        return new ShardedFaultTolerantCache<>(source, cacheParameters, segments);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ShardedFaultTolerantCache(final Function<K, Optional<V>> source, final CacheParameters<K, V> cacheParameters, final int segmentCount) {
+        final int size = (segmentCount == 1) ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+        ownedExecutor = cacheParameters.getRefreshExecutor().isPresent() ? null : RefreshExecutors.bounded();
+        final Executor refreshExecutor = cacheParameters.getRefreshExecutor().orElse(ownedExecutor);
+        final CacheParameters<K, V> segmentParameters = cacheParameters.forSegment(size, refreshExecutor);
+        final CircuitBreaker circuitBreaker = FaultTolerantCache.createCircuitBreaker(segmentParameters);
+        final HedgedSource<K, V> hedgedSource = FaultTolerantCache.createHedgedSource(source, segmentParameters, refreshExecutor);
+        segments = (FaultTolerantCache<K, V>[]) new FaultTolerantCache<?, ?>[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = FaultTolerantCache.segment(source, segmentParameters, circuitBreaker, hedgedSource);
+        }
+        mask = size - 1;
+    }
+
+    private FaultTolerantCache<K, V> segmentFor(final K key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    public Optional<V> get(final K key) {
+        return segmentFor(key).get(key);
+    }
+
+    @Nullable
+    public V getOrNull(final K key) {
+        return segmentFor(key).getOrNull(key);
+    }
+
+    public V getOrDefault(final K key, final V defaultValue) {
+        return segmentFor(key).getOrDefault(key, defaultValue);
+    }
+
+    /**
+     * @see FaultTolerantCache#getAll(Collection)
+     */
+    public Map<K, V> getAll(final Collection<K> keys) {
+        final Map<K, V> values = new HashMap<>();
+        bySegment(keys).forEach((segment, segmentKeys) -> values.putAll(segment.getAll(segmentKeys)));
+        return values;
+    }
+
+    public Optional<V> getIfPresent(final K key) {
+        return segmentFor(key).getIfPresent(key);
+    }
+
+    public Optional<Dated<V>> getDatedIfPresent(final K key) {
+        return segmentFor(key).getDatedIfPresent(key);
+    }
+
+    public Map<K, V> getPresent(final Collection<K> keys) {
+        final Map<K, V> present = new HashMap<>();
+        bySegment(keys).forEach((segment, segmentKeys) -> present.putAll(segment.getPresent(segmentKeys)));
+        return present;
+    }
+
+    public Map<K, V> getPresentFresh(final Collection<K> keys) {
+        final Map<K, V> present = new HashMap<>();
+        bySegment(keys).forEach((segment, segmentKeys) -> present.putAll(segment.getPresentFresh(segmentKeys)));
+        return present;
+    }
+
+    private Map<FaultTolerantCache<K, V>, List<K>> bySegment(final Collection<K> keys) {
+        final Map<FaultTolerantCache<K, V>, List<K>> bySegment = new HashMap<>();
+        for (final K key : keys) {
+            bySegment.computeIfAbsent(segmentFor(key), segment -> new ArrayList<>()).add(key);
+        }
+        return bySegment;
+    }
+
+    public void put(final K key, final V value) {
+        segmentFor(key).put(key, value);
+    }
+
+    /**
+     * @return the statistics of all segments together.
+     */
+    public CacheStats stats() {
+        CacheStats stats = segments[0].stats();
+        for (int i = 1; i < segments.length; i++) {
+            stats = stats.plus(segments[i].stats());
+        }
+        return stats;
+    }
+
+    int segmentCount() {
+        return segments.length;
+    }
+
+    @Override
+    public void close() {
+        for (final FaultTolerantCache<K, V> segment : segments) {
+            segment.close();
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+}
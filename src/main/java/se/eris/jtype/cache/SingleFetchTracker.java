@@ -15,33 +15,66 @@
  */
 package se.eris.jtype.cache;
 
-import java.time.LocalDateTime;
-import java.time.temporal.TemporalAmount;
-import java.util.HashMap;
-import java.util.Map;
+import org.jetbrains.annotations.Nullable;
 
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of which keys are currently being fetched, so that only one fetch per key is
+ * started until it is unmarked or times out. Lock free, each key is marked by an atomic
+ * compare-and-set on its mark, so marking different keys never contend.
+ */
 class SingleFetchTracker<K> {
 
-    private final Map<K, LocalDateTime> currentlyFetching = new HashMap<>();
-    private final TemporalAmount fetchTimeoutPeriod;
+    private final ConcurrentMap<K, Mark> currentlyFetching = new ConcurrentHashMap<>();
+    private final long fetchTimeoutNanos;
 
-    SingleFetchTracker(final TemporalAmount fetchTimeoutPeriod) {
-        this.fetchTimeoutPeriod = fetchTimeoutPeriod;
+    SingleFetchTracker(final Duration fetchTimeoutPeriod) {
+        this.fetchTimeoutNanos = fetchTimeoutPeriod.toNanos();
     }
 
-    synchronized boolean mark(final K key, final LocalDateTime now) {
-        final LocalDateTime markedAt = currentlyFetching.get(key);
-        if (markedAt != null) {
-            if (now.isBefore(markedAt.plus(this.fetchTimeoutPeriod))) {
-                return false;
+    /**
+     * @param now the current {@link Ticker} reading.
+     * @return the mark to unmark the key with when the fetch is done, or null if the key is
+     * already being fetched.
+     */
+    @Nullable
+    Mark mark(final K key, final long now) {
+        final Mark mark = new Mark(now);
+        while (true) {
+            final Mark current = currentlyFetching.putIfAbsent(key, mark);
+            if (current == null) {
+                return mark;
+            }
+            if ((now - current.markedAt) < fetchTimeoutNanos) {
+                return null;
+            }
+            if (currentlyFetching.replace(key, current, mark)) {
+                return mark;
             }
         }
-        currentlyFetching.put(key, now);
-        return true;
     }
 
-    boolean unmark(final K key) {
-        return currentlyFetching.remove(key) != null;
+    /**
+     * Removes the mark unless it has timed out and the key been marked again, so that a late fetch
+     * does not unmark the fetch that took over.
+     */
+    boolean unmark(final K key, final Mark mark) {
+        return currentlyFetching.remove(key, mark);
+    }
+
+    /**
+     * Compared by identity, so replacing or removing a mark only succeeds if nobody else has
+     * replaced it since it was read, even if they marked it at the same time.
+     */
+    static final class Mark {
+        private final long markedAt;
+
+        private Mark(final long markedAt) {
+            this.markedAt = markedAt;
+        }
     }
 
 }
@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent loads of the same key, so that only the first caller calls the loader and
+ * all callers arriving while that load is in flight wait for and share its result (or exception).
+ */
+class SingleFlightLoader<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    V load(final K key, final Function<K, V> loader) {
+        final CompletableFuture<V> load = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            final V value = loader.apply(key);
+            load.complete(value);
+            return value;
+        } catch (final Throwable e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    /**
+     * Calls the loader unless a load of the key is already in flight, without waiting for that
+     * load. For refreshes running on a bounded executor, which must not block on a load that may
+     * be queued behind them on the same executor.
+     *
+     * @return true if the loader was called.
+     */
+    boolean loadIfIdle(final K key, final Function<K, V> loader) {
+        final CompletableFuture<V> load = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, load) != null) {
+            return false;
+        }
+        complete(key, load, loader);
+        return true;
+    }
+
+    /**
+     * Same as {@link #load(Object, Function)} but calls the loader on the executor and waits at
+     * most the timeout for the result. The loader is never called on the calling thread, where
+     * nothing could bound it, so a load the executor rejects is not made at all and the callers
+     * waiting for it fail with the {@link RejectedExecutionException}.
+     *
+     * @throws TimeoutException if the load did not finish in time, it is then left to finish in
+     * the background, or if the executor rejected it.
+     */
+    V load(final K key, final Function<K, V> loader, final Executor executor, final long timeoutNanos) throws TimeoutException {
+        final CompletableFuture<V> load = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            return await(existing, timeoutNanos);
+        }
+        try {
+            executor.execute(() -> complete(key, load, loader));
+        } catch (final RejectedExecutionException e) {
+            inFlight.remove(key, load);
+            load.completeExceptionally(e);
+            throw new TimeoutException("Load of " + key + " rejected by the executor");
+        }
+        return await(load, timeoutNanos);
+    }
+
+    /**
+     * Removes the load before completing it, so that a waiter loading again when woken up does not
+     * get the finished load. A loader failure is rethrown after completing the load with it.
+     */
+    private void complete(final K key, final CompletableFuture<V> load, final Function<K, V> loader) {
+        final V value;
+        try {
+            value = loader.apply(key);
+        } catch (final RuntimeException e) {
+            inFlight.remove(key, load);
+            load.completeExceptionally(e);
+            return;
+        } catch (final Throwable e) {
+            inFlight.remove(key, load);
+            load.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, load);
+        load.complete(value);
+    }
+
+    private static <V> V await(final CompletableFuture<V> load, final long timeoutNanos) throws TimeoutException {
+        try {
+            return load.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    private static <V> V await(final CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters behind {@link CacheStats}. {@link LongAdder}s spread concurrent increments over
+ * cells, so that counting hits does not make readers of the same cache contend.
+ */
+final class StatsCounter {
+
+    private final LongAdder freshHits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder syncRefreshes = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram loadLatencies = new LatencyHistogram();
+
+    void recordFreshHit() {
+        freshHits.increment();
+    }
+
+    void recordStaleHit() {
+        staleHits.increment();
+    }
+
+    void recordSyncRefresh() {
+        syncRefreshes.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordLoad(final long nanos) {
+        loads.increment();
+        loadLatencies.record(nanos);
+    }
+
+    void recordFailure(final long nanos) {
+        failures.increment();
+        loadLatencies.record(nanos);
+    }
+
+    CacheStats snapshot() {
+        return new CacheStats(freshHits.sum(), staleHits.sum(), syncRefreshes.sum(), misses.sum(), loads.sum(), failures.sum(), loadLatencies.snapshot());
+    }
+
+}
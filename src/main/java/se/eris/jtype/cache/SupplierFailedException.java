@@ -17,6 +17,10 @@ package se.eris.jtype.cache;
 
 public class SupplierFailedException extends RuntimeException {
 
+    public SupplierFailedException(final String message) {
+        super(message);
+    }
+
     public SupplierFailedException(final String message, final Throwable e) {
         super(message, e);
     }
@@ -0,0 +1,51 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.function.Supplier;
+
+/**
+ * A source of time as a primitive nanosecond count, so that checking the freshness of an entry
+ * does not allocate. Only differences between two readings are meaningful.
+ *
+ * The {@link #system() system ticker} is monotonic, unlike the wall clock it does not jump with
+ * NTP corrections or daylight saving time changes.
+ *
+ * @see FakeTicker
+ */
+@FunctionalInterface
+public interface Ticker {
+
+    static Ticker system() {
+        return System::nanoTime;
+    }
+
+    /**
+     * @return a ticker reading the given time supplier. Allocates whatever the supplier allocates,
+     * mainly intended for controlling the time in tests.
+     */
+    static Ticker of(final Supplier<LocalDateTime> timeSupplier) {
+        return () -> {
+            final LocalDateTime now = timeSupplier.get();
+            return (now.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L) + now.getNano();
+        };
+    }
+
+    long read();
+
+}
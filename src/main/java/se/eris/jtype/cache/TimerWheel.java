@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel of keys by deadline, in {@link Ticker} nanoseconds. Each of the
+ * {@value #LEVELS} levels has {@value #BUCKETS} buckets, each bucket of a level spanning
+ * {@value #BUCKETS} buckets of the level below. Buckets span from about a second in the lowest
+ * level to about three days in the highest, so the wheel spans about 208 days. A key is placed in
+ * the lowest level that reaches its deadline and moved down as time passes, so that advancing the
+ * wheel touches the expired keys and few others, not all the keys. A later deadline is kept in the
+ * highest level and placed again each time its bucket comes round.
+ *
+ * A key has at most one deadline, scheduling it again moves it. Not thread safe by itself, all
+ * methods synchronize on the wheel.
+ */
+final class TimerWheel<K> {
+
+    static final int LEVELS = 4;
+    private static final int BUCKET_BITS = 6;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int FIRST_SHIFT = 30;
+
+    private final Node<K>[][] wheel;
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private long time;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(final long now) {
+        time = now;
+        wheel = (Node<K>[][]) new Node<?>[LEVELS][BUCKETS];
+        for (final Node<K>[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                level[i] = Node.sentinel();
+            }
+        }
+    }
+
+    synchronized void schedule(final K key, final long deadline) {
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            node = new Node<>(key);
+            nodes.put(key, node);
+        } else {
+            node.unlink();
+        }
+        node.deadline = deadline;
+        place(node);
+    }
+
+    synchronized void remove(final K key) {
+        final Node<K> node = nodes.remove(key);
+        if (node != null) {
+            node.unlink();
+        }
+    }
+
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Moves the wheel to the time and removes the keys whose deadline has passed.
+     *
+     * @return the removed keys.
+     */
+    synchronized List<K> advance(final long now) {
+        final List<K> expired = new ArrayList<>();
+        final long previous = time;
+        if ((now - previous) < 0) {
+            return expired;
+        }
+        time = now;
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = shift(level);
+            final long previousTicks = previous >> shift;
+            final long currentTicks = now >> shift;
+            if ((level > 0) && (currentTicks == previousTicks)) {
+                break;
+            }
+            final long first = (level == 0) ? previousTicks : (previousTicks + 1);
+            final long buckets = Math.min((currentTicks - first) + 1, BUCKETS);
+            for (long ticks = first; ticks < (first + buckets); ticks++) {
+                expire(wheel[level][(int) (ticks & (BUCKETS - 1))], now, expired);
+            }
+        }
+        return expired;
+    }
+
+    private void expire(final Node<K> sentinel, final long now, final List<K> expired) {
+        final List<Node<K>> drained = new ArrayList<>();
+        for (Node<K> node = sentinel.next; node != sentinel; node = node.next) {
+            drained.add(node);
+        }
+        for (final Node<K> node : drained) {
+            node.unlink();
+            if ((node.deadline - now) <= 0) {
+                nodes.remove(node.key);
+                expired.add(node.key);
+            } else {
+                place(node);
+            }
+        }
+    }
+
+    private void place(final Node<K> node) {
+        final long delta = Math.max(0, node.deadline - time);
+        int level = 0;
+        while ((level < (LEVELS - 1)) && (delta >= (1L << (shift(level) + BUCKET_BITS)))) {
+            level++;
+        }
+        final long at = time + delta;
+        node.linkBefore(wheel[level][(int) ((at >> shift(level)) & (BUCKETS - 1))]);
+    }
+
+    private static int shift(final int level) {
+        return FIRST_SHIFT + (level * BUCKET_BITS);
+    }
+
+    private static final class Node<K> {
+
+        @Nullable
+        private final K key;
+        private long deadline;
+        private Node<K> previous = this;
+        private Node<K> next = this;
+
+        static <K> Node<K> sentinel() {
+            return new Node<>(null);
+        }
+
+        Node(@Nullable final K key) {
+            this.key = key;
+        }
+
+        void linkBefore(final Node<K> sentinel) {
+            previous = sentinel.previous;
+            next = sentinel;
+            previous.next = this;
+            sentinel.previous = this;
+        }
+
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+
+    }
+
+}
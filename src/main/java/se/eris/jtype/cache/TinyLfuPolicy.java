@@ -0,0 +1,231 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Window TinyLFU admission and eviction for a cache with a maximum weight (the maximum size is
+ * the special case where every entry weighs one).
+ *
+ * New keys enter a small LRU window. A key leaving the window is only admitted into the main
+ * segmented LRU (probation and protected) if it has been seen more often than the probation key
+ * it would replace, otherwise it is the one evicted. Keys accessed while on probation are
+ * promoted to the protected segment. This keeps the frequently used keys in the cache even when
+ * a scan of one-hit keys passes through it.
+ *
+ * All segments are access ordered linked hash maps, so every operation, including finding the
+ * next victim, is O(1) and eviction never scans the cache.
+ *
+ * Reads that find the policy busy are dropped instead of waiting for the lock, so the hit path
+ * never blocks. That only makes the recency order slightly less exact.
+ */
+final class TinyLfuPolicy<K> {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Lock lock = new ReentrantLock();
+    private final FrequencySketch<K> sketch;
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final Segment<K> window = new Segment<>();
+    private final Segment<K> probation = new Segment<>();
+    private final Segment<K> protectedSegment = new Segment<>();
+
+    /**
+     * @param maximum the maximum total weight.
+     * @param expectedSize the expected number of entries, used to size the frequency sketch. It
+     * grows with the number of entries if this is too low.
+     */
+    TinyLfuPolicy(final long maximum, final long expectedSize) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("Maximum " + maximum + " less than zero");
+        }
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, (maximum * WINDOW_PERCENT) / 100);
+        this.protectedMaximum = ((maximum - windowMaximum) * PROTECTED_PERCENT) / 100;
+        this.sketch = new FrequencySketch<>(expectedSize);
+    }
+
+    void recordAccess(final K key) {
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                onAccess(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records that the key has been written with the given weight and evicts keys until the
+     * policy is within its maximum weight again.
+     *
+     * @param evictor called with each evicted key, while holding the policy lock.
+     */
+    void recordWrite(final K key, final int weight, final Consumer<K> evictor) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight " + weight + " less than zero for key " + key);
+        }
+        lock.lock();
+        try {
+            sketch.increment(key);
+            final Segment<K> segment = segmentOf(key);
+            if (segment == null) {
+                window.put(key, weight);
+                sketch.ensureCapacity(entries());
+            } else {
+                segment.put(key, weight);
+                onAccess(key);
+            }
+            evict(evictor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordRemoval(final K key) {
+        lock.lock();
+        try {
+            final Segment<K> segment = segmentOf(key);
+            if (segment != null) {
+                segment.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Segment<K> segmentOf(final K key) {
+        if (window.contains(key)) {
+            return window;
+        }
+        if (probation.contains(key)) {
+            return probation;
+        }
+        return protectedSegment.contains(key) ? protectedSegment : null;
+    }
+
+    private void onAccess(final K key) {
+        if (window.touch(key) || protectedSegment.touch(key)) {
+            return;
+        }
+        final int weight = probation.remove(key);
+        if (weight >= 0) {
+            protectedSegment.put(key, weight);
+            while (protectedSegment.weight() > protectedMaximum) {
+                final K demoted = protectedSegment.eldest();
+                probation.put(demoted, protectedSegment.remove(demoted));
+            }
+        }
+    }
+
+    private void evict(final Consumer<K> evictor) {
+        while (window.weight() > windowMaximum) {
+            final K candidate = window.eldest();
+            probation.put(candidate, window.remove(candidate));
+            while (weight() > maximum) {
+                final K victim = probation.eldest();
+                final K evicted = (victim.equals(candidate) || admit(candidate, victim)) ? victim : candidate;
+                probation.remove(evicted);
+                evictor.accept(evicted);
+                if (evicted.equals(candidate)) {
+                    break;
+                }
+            }
+        }
+        while (weight() > maximum) {
+            final Segment<K> segment = !probation.isEmpty() ? probation : (!protectedSegment.isEmpty() ? protectedSegment : window);
+            final K evicted = segment.eldest();
+            segment.remove(evicted);
+            evictor.accept(evicted);
+        }
+    }
+
+    private boolean admit(final K candidate, final K victim) {
+        return sketch.frequency(candidate) > sketch.frequency(victim);
+    }
+
+    private long weight() {
+        return window.weight() + probation.weight() + protectedSegment.weight();
+    }
+
+    private long entries() {
+        return (long) window.size() + probation.size() + protectedSegment.size();
+    }
+
+    private static final class Segment<K> {
+
+        private final Map<K, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        boolean contains(final K key) {
+            return weights.containsKey(key);
+        }
+
+        boolean touch(final K key) {
+            return weights.get(key) != null;
+        }
+
+        void put(final K key, final int keyWeight) {
+            final Integer previous = weights.put(key, keyWeight);
+            weight += keyWeight - ((previous == null) ? 0 : previous);
+        }
+
+        /**
+         * @return the weight of the removed key, or -1 if it was not in the segment.
+         */
+        int remove(final K key) {
+            final Integer removed = weights.remove(key);
+            if (removed == null) {
+                return -1;
+            }
+            weight -= removed;
+            return removed;
+        }
+
+        @Nullable
+        K eldest() {
+            final Iterator<K> iterator = weights.keySet().iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        long weight() {
+            return weight;
+        }
+
+        int size() {
+            return weights.size();
+        }
+
+        boolean isEmpty() {
+            return weights.isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.hamcrest.Matchers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AsyncFaultTolerantCacheTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private static final Duration REFETCH_SYNC_PERIOD = Duration.ofMinutes(20);
+    private static final Duration REFETCH_ASYNC_PERIOD = Duration.ofMinutes(5);
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final CacheParameters<String, Integer> parameters = CacheParameters.Builder.<String, Integer>init()
+            .asyncFetchPeriod(REFETCH_ASYNC_PERIOD)
+            .syncFetchPeriod(REFETCH_SYNC_PERIOD)
+            .ticker(ticker)
+            .build();
+
+    @Test
+    public void get_notExisting_shouldFetchAndReturnValue() {
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(key -> CompletableFuture.completedFuture(Optional.of(key.length())), parameters);
+
+        assertThat(cache.get("ABC").join(), is(Optional.of(3)));
+        assertThat(cache.synchronous().getIfPresent("ABC"), is(Optional.of(3)));
+    }
+
+    @Test
+    public void get_concurrentMisses_shouldShareInFlightFetch() {
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final CompletableFuture<Optional<Integer>> pending = new CompletableFuture<>();
+        final Function<String, CompletionStage<Optional<Integer>>> source = key -> {
+            sourceCalls.incrementAndGet();
+            return pending;
+        };
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(source, parameters);
+
+        final CompletableFuture<Optional<Integer>> first = cache.get("A");
+        final CompletableFuture<Optional<Integer>> second = cache.get("A");
+        assertThat(first.isDone(), is(false));
+        pending.complete(Optional.of(7));
+
+        assertThat(first.join(), is(Optional.of(7)));
+        assertThat(second.join(), is(Optional.of(7)));
+        assertThat(sourceCalls.get(), is(1));
+    }
+
+    @Test
+    public void get_stale_shouldReturnCachedValueAndRefresh() {
+        final CompletableFuture<Optional<Integer>> pending = new CompletableFuture<>();
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(key -> pending, parameters);
+        cache.synchronous().put("A", 1);
+        ticker.advance(REFETCH_ASYNC_PERIOD);
+
+        final CompletableFuture<Optional<Integer>> stale = cache.get("A");
+        assertThat(stale.isDone(), is(true));
+        assertThat(stale.join(), is(Optional.of(1)));
+        pending.complete(Optional.of(2));
+        assertThat(cache.get("A").join(), is(Optional.of(2)));
+    }
+
+    @Test
+    public void get_failingSourceWithCache_shouldReturnCachedValue() {
+        final CompletableFuture<Optional<Integer>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalArgumentException("Supplier Error"));
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(key -> failed, parameters);
+        cache.synchronous().put("A", 1);
+        ticker.advance(REFETCH_SYNC_PERIOD);
+
+        assertThat(cache.get("A").join(), is(Optional.of(1)));
+    }
+
+    @Test
+    public void get_failingSourceWithoutCache_shouldCompleteExceptionally() {
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(key -> {
+            throw new IllegalArgumentException("Supplier Error");
+        }, parameters);
+
+        exception.expect(CompletionException.class);
+        exception.expectCause(Matchers.any(SupplierFailedException.class));
+        cache.get("A").join();
+    }
+
+    @Test
+    public void get_storeFails_shouldCompleteExceptionally() {
+        final CacheParameters<String, Integer> negativeWeight = CacheParameters.Builder.<String, Integer>init()
+                .ticker(ticker)
+                .maximumWeight(10, (String key, Integer value) -> -1)
+                .build();
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(key -> CompletableFuture.completedFuture(Optional.of(1)), negativeWeight);
+
+        assertThat(cache.get("X").isCompletedExceptionally(), is(true));
+        assertThat(cache.get("X").isCompletedExceptionally(), is(true));
+    }
+
+    @Test
+    public void get_supplierFailedActionThrows_shouldCompleteExceptionally() {
+        final CacheParameters<String, Integer> throwingAction = CacheParameters.Builder.<String, Integer>init()
+                .ticker(ticker)
+                .supplierFailedAction((key, e) -> {
+                    throw new IllegalStateException("Action failed");
+                })
+                .build();
+        final CompletableFuture<Optional<Integer>> failed = new CompletableFuture<>();
+        final AsyncFaultTolerantCache<String, Integer> cache = AsyncFaultTolerantCache.of(key -> failed, throwingAction);
+
+        final CompletableFuture<Optional<Integer>> get = cache.get("A");
+        failed.completeExceptionally(new IllegalArgumentException("Supplier Error"));
+
+        assertThat(get.isCompletedExceptionally(), is(true));
+    }
+
+}
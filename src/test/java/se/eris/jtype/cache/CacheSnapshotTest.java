@@ -0,0 +1,169 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CacheSnapshotTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private static final Duration ASYNC_FETCH_PERIOD = Duration.ofMinutes(5);
+    private static final Duration SYNC_FETCH_PERIOD = Duration.ofMinutes(20);
+    private static final Function<String, Optional<String>> FAILING_SOURCE = key -> {
+        throw new IllegalStateException("Source down");
+    };
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("cache", ".snapshot");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void restore_writtenSnapshot_shouldServeStaleValuesWhileSourceIsDown() throws IOException {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheSnapshot<String, String> snapshot = CacheSnapshot.of(file, Codec.utf8(), Codec.utf8());
+        final FaultTolerantCache<String, String> written = FaultTolerantCache.of(FAILING_SOURCE, parameters(ticker));
+        written.put("OLD", "old value");
+        ticker.advance(ASYNC_FETCH_PERIOD);
+        written.put("NEW", "new value");
+        snapshot.write(written);
+
+        final FakeTicker restartedTicker = new FakeTicker();
+        restartedTicker.advance(Duration.ofDays(1000));
+        final FaultTolerantCache<String, String> restored = FaultTolerantCache.of(FAILING_SOURCE, parameters(restartedTicker));
+
+        assertThat(snapshot.restore(restored), is(2));
+        assertThat(restored.getPresentFresh(Arrays.asList("OLD", "NEW")).keySet(), is(Collections.singleton("NEW")));
+        assertThat(restored.get("OLD"), is(Optional.of("old value")));
+        assertThat(restored.get("NEW"), is(Optional.of("new value")));
+    }
+
+    @Test
+    public void restore_existingKey_shouldKeepCurrentValue() throws IOException {
+        final CacheSnapshot<String, String> snapshot = CacheSnapshot.of(file, Codec.utf8(), Codec.utf8());
+        final FaultTolerantCache<String, String> written = FaultTolerantCache.of(FAILING_SOURCE, parameters(new FakeTicker()));
+        written.put("A", "snapshot");
+        snapshot.write(written);
+
+        final FaultTolerantCache<String, String> restored = FaultTolerantCache.of(FAILING_SOURCE, parameters(new FakeTicker()));
+        restored.put("A", "current");
+
+        assertThat(snapshot.restore(restored), is(0));
+        assertThat(restored.get("A"), is(Optional.of("current")));
+    }
+
+    @Test
+    public void write_codecThrows_shouldDeleteTemporaryFileAndKeepSnapshot() throws IOException {
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(FAILING_SOURCE, parameters(new FakeTicker()));
+        cache.put("A", "value");
+        CacheSnapshot.of(file, Codec.utf8(), Codec.utf8()).write(cache);
+        final byte[] written = Files.readAllBytes(file);
+
+        try {
+            CacheSnapshot.of(file, Codec.utf8(), failingCodec()).write(cache);
+            fail("Codec failure not thrown");
+        } catch (final IllegalStateException expected) {
+            assertThat(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")), is(false));
+            assertThat(Arrays.equals(Files.readAllBytes(file), written), is(true));
+        }
+    }
+
+    @Test
+    public void writePeriodically_codecThrows_shouldReportEveryFailureAndKeepWriting() throws InterruptedException {
+        final CacheSnapshot<String, String> snapshot = CacheSnapshot.of(file, Codec.utf8(), failingCodec());
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(FAILING_SOURCE, parameters(new FakeTicker()));
+        cache.put("A", "value");
+        final CountDownLatch failures = new CountDownLatch(2);
+
+        final ScheduledFuture<?> writes = snapshot.writePeriodically(cache, Duration.ofMillis(1), e -> failures.countDown());
+        try {
+            assertThat(failures.await(10, TimeUnit.SECONDS), is(true));
+        } finally {
+            writes.cancel(false);
+        }
+    }
+
+    @Test
+    public void restore_noSnapshot_shouldRestoreNothing() throws IOException {
+        Files.delete(file);
+        final CacheSnapshot<String, String> snapshot = CacheSnapshot.of(file, Codec.utf8(), Codec.utf8());
+
+        assertThat(snapshot.restore(FaultTolerantCache.of(FAILING_SOURCE, parameters(new FakeTicker()))), is(0));
+    }
+
+    @Test
+    public void restore_notASnapshot_shouldThrow() throws IOException {
+        Files.write(file, "not a snapshot".getBytes("UTF-8"));
+        final CacheSnapshot<String, String> snapshot = CacheSnapshot.of(file, Codec.utf8(), Codec.utf8());
+
+        exception.expect(IOException.class);
+        snapshot.restore(FaultTolerantCache.of(FAILING_SOURCE, parameters(new FakeTicker())));
+    }
+
+    private static Codec<String> failingCodec() {
+        return new Codec<String>() {
+            @Override
+            public byte[] encode(final String value) {
+                throw new IllegalStateException("Cannot encode");
+            }
+
+            @Override
+            public String decode(final ByteBuffer bytes) {
+                throw new IllegalStateException("Cannot decode");
+            }
+        };
+    }
+
+    private static CacheParameters<String, String> parameters(final Ticker ticker) {
+        return CacheParameters.Builder.<String, String>init()
+                .asyncFetchPeriod(ASYNC_FETCH_PERIOD)
+                .syncFetchPeriod(SYNC_FETCH_PERIOD)
+                .refreshExecutor(Runnable::run)
+                .ticker(ticker)
+                .build();
+    }
+
+}
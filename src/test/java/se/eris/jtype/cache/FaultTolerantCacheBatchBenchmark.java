@@ -0,0 +1,124 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Time to read a batch of keys from a {@link FaultTolerantCache} with {@link
+ * FaultTolerantCache#getPresent(java.util.Collection)} and {@link
+ * FaultTolerantCache#getAll(java.util.Collection)}, against reading the same keys one by one. The
+ * largest batch is above the size where getPresent looks the keys up in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FaultTolerantCacheBatchBenchmark {
+
+    private static final int CACHE_SIZE = 100_000;
+
+    @Param({"10", "1000", "20000"})
+    public int batchSize;
+
+    private FaultTolerantCache<String, Integer> cache;
+    private List<String> keys;
+
+    @Setup
+    public void setUp() {
+        final CacheParameters<String, Integer> parameters = CacheParameters.Builder.<String, Integer>init()
+                .asyncFetchPeriod(Duration.ofHours(1))
+                .syncFetchPeriod(Duration.ofHours(2))
+                .refreshExecutor(Runnable::run)
+                .build();
+        final Function<String, Optional<Integer>> source = key -> Optional.of(key.length());
+        cache = FaultTolerantCache.of(source, requested -> requested.stream().collect(Collectors.toMap(key -> key, String::length)), parameters);
+        final List<String> all = new ArrayList<>();
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            all.add("K" + i);
+            cache.put("K" + i, i);
+        }
+        Collections.shuffle(all);
+        keys = new ArrayList<>(all.subList(0, batchSize));
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    public Map<String, Integer> getPresent() {
+        return cache.getPresent(keys);
+    }
+
+    @Benchmark
+    public Map<String, Integer> getIfPresentPerKey() {
+        final Map<String, Integer> present = new HashMap<>();
+        for (final String key : keys) {
+            cache.getIfPresent(key).ifPresent(value -> present.put(key, value));
+        }
+        return present;
+    }
+
+    @Benchmark
+    public Map<String, Integer> getAll() {
+        return cache.getAll(keys);
+    }
+
+    @Benchmark
+    public Map<String, Integer> getPerKey() {
+        final Map<String, Integer> values = new HashMap<>();
+        for (final String key : keys) {
+            cache.get(key).ifPresent(value -> values.put(key, value));
+        }
+        return values;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FaultTolerantCacheBatchBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -19,22 +19,44 @@ import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import se.eris.jtype.cache.dated.Dated;
+import se.eris.jtype.cache.dated.FetchedAt;
+import se.eris.jtype.collection.HashcodeEquals;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.temporal.TemporalAmount;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class FaultTolerantCacheTest {
 
@@ -44,11 +66,19 @@ public class FaultTolerantCacheTest {
     private static final Duration REFETCH_SYNC_PERIOD = Duration.ofMinutes(20);
     private static final Duration REFETCH_ASYNC_PERIOD = Duration.ofMinutes(5);
 
-    private static final CacheParameters<String> CACHE_PARAMETERS = getParmaeterBuilder()
+    private static final CacheParameters<String, Integer> CACHE_PARAMETERS = getParmaeterBuilder()
             .build();
 
-    private static CacheParameters.Builder<String> getParmaeterBuilder() {
-        return CacheParameters.Builder.<String>init()
+    private static CacheParameters.Builder<String, Integer> getParmaeterBuilder() {
+        return withTestPeriods(CacheParameters.Builder.<String, Integer>init());
+    }
+
+    private static CacheParameters.Builder<String, String> getStringParameterBuilder() {
+        return withTestPeriods(CacheParameters.Builder.<String, String>init());
+    }
+
+    private static <V> CacheParameters.Builder<String, V> withTestPeriods(final CacheParameters.Builder<String, V> builder) {
+        return builder
                 .asyncFetchPeriod(REFETCH_ASYNC_PERIOD)
                 .syncFetchPeriod(REFETCH_SYNC_PERIOD)
                 .fetchTimeoutPeriod(Duration.ofMinutes(1));
@@ -92,7 +122,7 @@ public class FaultTolerantCacheTest {
     @Test
     public void get_syncFailingSourceWithCache_shouldNotAtemptAgainUntilAfterFetchTimeout() {
         final TimeSupplier timeSupplier = new TimeSupplier();
-        final CacheParameters.Builder<String> parmaeterBuilder = getParmaeterBuilder();
+        final CacheParameters.Builder<String, Integer> parmaeterBuilder = getParmaeterBuilder();
         final AtomicInteger failedCounter = new AtomicInteger(0);
         parmaeterBuilder.supplierFailedAction((s, e) -> failedCounter.incrementAndGet());
         final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parmaeterBuilder.build(), timeSupplier);
@@ -204,6 +234,1048 @@ public class FaultTolerantCacheTest {
         assertThat(present.get("B"), is(2));
     }
 
+    @Test
+    public void put_beyondMaximumSize_shouldEvictDownToMaximumSize() {
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, getParmaeterBuilder().maximumSize(100).build());
+        final List<String> keys = IntStream.range(0, 1000).mapToObj(i -> "K" + i).collect(Collectors.toList());
+        keys.forEach(key -> cache.put(key, 1));
+
+        assertThat(cache.getPresent(keys).size(), is(100));
+    }
+
+    @Test
+    public void put_scanAfterHotKeys_shouldKeepHotKeys() {
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, getParmaeterBuilder().maximumSize(100).build());
+        final List<String> hotKeys = IntStream.range(0, 50).mapToObj(i -> "H" + i).collect(Collectors.toList());
+        hotKeys.forEach(key -> cache.put(key, 1));
+        for (int i = 0; i < 5; i++) {
+            hotKeys.forEach(cache::get);
+        }
+
+        IntStream.range(0, 1000).forEach(i -> cache.put("S" + i, 1));
+
+        assertThat(cache.getPresent(hotKeys).size(), is(hotKeys.size()));
+    }
+
+    @Test
+    public void put_beyondMaximumWeight_shouldEvictDownToMaximumWeight() {
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().maximumWeight(1000, (String k, Integer v) -> v).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters);
+        final List<String> keys = IntStream.range(0, 500).mapToObj(i -> "K" + i).collect(Collectors.toList());
+        keys.forEach(key -> cache.put(key, (key.hashCode() % 100) + 1));
+
+        final int totalWeight = cache.getPresent(keys).values().stream().mapToInt(Integer::intValue).sum();
+        assertThat(totalWeight <= 1000, is(true));
+        assertThat(totalWeight > 900, is(true));
+    }
+
+    @Test
+    public void put_heavierThanMaximumWeight_shouldNotBeCached() {
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().maximumWeight(10, (String k, Integer v) -> v).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters);
+        cache.put("A", 5);
+        cache.put("B", 11);
+
+        assertThat(cache.getIfPresent("A"), is(Optional.of(5)));
+        assertThat(cache.getIfPresent("B"), is(Optional.empty()));
+    }
+
+    @Test
+    public void put_negativeWeight_shouldThrowAndLeaveCacheUnchanged() {
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().maximumWeight(10, (String k, Integer v) -> v).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters);
+        cache.put("A", 5);
+
+        try {
+            cache.put("A", -5);
+            fail("Negative weight accepted");
+        } catch (final IllegalArgumentException expected) {
+            assertThat(cache.getIfPresent("A"), is(Optional.of(5)));
+        }
+        try {
+            cache.put("NEG", -5);
+            fail("Negative weight accepted");
+        } catch (final IllegalArgumentException expected) {
+            assertThat(cache.getIfPresent("NEG"), is(Optional.empty()));
+        }
+    }
+
+    @Test
+    public void build_maximumSizeAndWeight_shouldThrow() {
+        exception.expect(IllegalStateException.class);
+        getParmaeterBuilder().maximumSize(10).maximumWeight(10, Weigher.singleton()).build();
+    }
+
+    @Test(timeout = 10000)
+    public void get_concurrentMisses_shouldCallSourceOncePerKey() throws InterruptedException, ExecutionException {
+        final Map<String, AtomicInteger> sourceCalls = new ConcurrentHashMap<>();
+        final Function<String, Optional<Integer>> slowSource = key -> {
+            sourceCalls.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            return source.apply("S200:" + key);
+        };
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(slowSource, CACHE_PARAMETERS);
+        final int threads = 32;
+        final List<String> keys = Arrays.asList("A", "B", "C", "D");
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Optional<Integer>>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final String key = keys.get(i % keys.size());
+            results.add(executor.submit(() -> {
+                start.await();
+                return cache.get(key);
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        for (final Future<Optional<Integer>> result : results) {
+            assertThat(result.get(), is(Optional.of("S200:A".length())));
+        }
+        for (final String key : keys) {
+            assertThat(sourceCalls.get(key).get(), is(1));
+        }
+    }
+
+    @Test
+    public void get_refreshExecutorRejects_shouldReturnStaleValue() {
+        final TimeSupplier timeSupplier = new TimeSupplier();
+        final Executor rejecting = runnable -> {
+            throw new RejectedExecutionException("full");
+        };
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, getParmaeterBuilder().refreshExecutor(rejecting).build(), timeSupplier);
+        cache.put("AB", 1);
+
+        timeSupplier.step(Duration.ofMinutes(10));
+        assertThat(cache.get("AB"), is(Optional.of(1)));
+        assertThat(cache.get("AB"), is(Optional.of(1)));
+    }
+
+    @Test
+    public void get_givenRefreshExecutor_shouldRefreshOnIt() {
+        final TimeSupplier timeSupplier = new TimeSupplier();
+        final AtomicInteger refreshes = new AtomicInteger();
+        final Executor direct = runnable -> {
+            refreshes.incrementAndGet();
+            runnable.run();
+        };
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, getParmaeterBuilder().refreshExecutor(direct).build(), timeSupplier)) {
+            cache.put("AB", 1);
+
+            timeSupplier.step(Duration.ofMinutes(10));
+            assertThat(cache.get("AB"), is(Optional.of(1)));
+            assertThat(refreshes.get(), is(1));
+            assertThat(cache.get("AB"), is(Optional.of(2)));
+        }
+    }
+
+    @Test
+    public void getOrNull_fresh_returnValue() {
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, CACHE_PARAMETERS);
+        cache.put("A", 7);
+
+        assertThat(cache.getOrNull("A"), is(7));
+        assertThat(cache.getOrDefault("A", 1), is(7));
+    }
+
+    @Test
+    public void getOrDefault_sourceReturnsEmpty_returnDefault() {
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(s -> Optional.empty(), CACHE_PARAMETERS);
+
+        assertThat(cache.getOrNull("A"), is((Integer) null));
+        assertThat(cache.getOrDefault("A", 1), is(1));
+    }
+
+    @Test
+    public void getOrNull_freshHit_shouldNotAllocate() {
+        assertThat(bytesAllocatedByFreshHits(CACHE_PARAMETERS), is(0L));
+        assertThat(bytesAllocatedByFreshHits(getParmaeterBuilder().maximumSize(100).build()), is(0L));
+    }
+
+    private static long bytesAllocatedByFreshHits(final CacheParameters<String, Integer> parameters) {
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters);
+        final String key = "A";
+        cache.put(key, 1);
+        for (int i = 0; i < 100_000; i++) {
+            cache.getOrNull(key);
+        }
+
+        final int calls = 1_000_000;
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            cache.getOrNull(key);
+        }
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        // the measurement itself may allocate a little, but nowhere near a byte per call
+        return allocated / calls;
+    }
+
+    @Test
+    public void getDatedIfPresent_existing_returnValueWithFetchTimes() {
+        final TimeSupplier timeSupplier = new TimeSupplier();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, CACHE_PARAMETERS, timeSupplier);
+        final LocalDateTime fetchedAt = timeSupplier.get();
+        cache.put("A", 1);
+        timeSupplier.step(Duration.ofMinutes(1));
+
+        final Dated<Integer> dated = cache.getDatedIfPresent("A").get();
+        assertThat(dated.getSubject(), is(1));
+        assertThat(dated.getFetchTime(), is(FetchedAt.of(fetchedAt)));
+        assertThat(dated.isFresh(timeSupplier.get()), is(true));
+        assertThat(dated.isFresh(fetchedAt.plus(REFETCH_ASYNC_PERIOD)), is(false));
+        assertThat(cache.getDatedIfPresent("B"), is(Optional.empty()));
+    }
+
+    @Test
+    public void get_fakeTicker_shouldRefreshAsyncThenSync() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<Integer>> countingSource = key -> Optional.of(sourceCalls.incrementAndGet());
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().ticker(ticker).refreshExecutor(Runnable::run).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(countingSource, parameters);
+
+        assertThat(cache.get("A"), is(Optional.of(1)));
+        ticker.advance(REFETCH_ASYNC_PERIOD.minusNanos(1));
+        assertThat(cache.get("A"), is(Optional.of(1)));
+        ticker.advance(Duration.ofNanos(1));
+        assertThat(cache.get("A"), is(Optional.of(1)));
+        assertThat(cache.get("A"), is(Optional.of(2)));
+        ticker.advance(REFETCH_SYNC_PERIOD);
+        assertThat(cache.get("A"), is(Optional.of(3)));
+    }
+
+    @Test
+    public void getAll_missingAndStale_shouldFetchMissingInOneBatchAndRefreshStaleInAnother() {
+        final FakeTicker ticker = new FakeTicker();
+        final List<Set<String>> batches = new ArrayList<>();
+        final Function<Set<String>, Map<String, Integer>> batchSource = keys -> {
+            batches.add(new HashSet<>(keys));
+            return keys.stream().filter(key -> !key.equals("NONE")).collect(Collectors.toMap(key -> key, key -> 10));
+        };
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().ticker(ticker).refreshExecutor(Runnable::run).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, batchSource, parameters);
+        cache.put("STALE1", 1);
+        cache.put("STALE2", 1);
+        ticker.advance(REFETCH_ASYNC_PERIOD);
+        cache.put("FRESH", 1);
+
+        final Map<String, Integer> values = cache.getAll(Arrays.asList("FRESH", "STALE1", "STALE2", "MISSING1", "MISSING2", "NONE"));
+
+        assertThat(values.size(), is(5));
+        assertThat(values.get("FRESH"), is(1));
+        assertThat(values.get("STALE1"), is(1));
+        assertThat(values.get("MISSING1"), is(10));
+        assertThat(batches.size(), is(2));
+        assertThat(batches.get(0), is(new HashSet<>(Arrays.asList("MISSING1", "MISSING2", "NONE"))));
+        assertThat(batches.get(1), is(new HashSet<>(Arrays.asList("STALE1", "STALE2"))));
+        assertThat(cache.getIfPresent("STALE2"), is(Optional.of(10)));
+    }
+
+    @Test
+    public void getAll_failingBatchSourceWithCache_shouldReturnCachedValues() {
+        final FakeTicker ticker = new FakeTicker();
+        final Function<Set<String>, Map<String, Integer>> batchSource = keys -> {
+            throw new IllegalArgumentException("Supplier Error");
+        };
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, batchSource, getParmaeterBuilder().ticker(ticker).build());
+        cache.put("A", 1);
+        ticker.advance(REFETCH_SYNC_PERIOD);
+
+        assertThat(cache.getAll(Collections.singleton("A")), is(Collections.singletonMap("A", 1)));
+        exception.expect(SupplierFailedException.class);
+        cache.getAll(Arrays.asList("A", "B"));
+    }
+
+    @Test
+    public void getPresent_manyKeys_returnAllPresent() {
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, CACHE_PARAMETERS);
+        IntStream.range(0, 50_000).forEach(i -> cache.put("K" + i, i));
+
+        final List<String> keys = IntStream.range(25_000, 75_000).mapToObj(i -> "K" + i).collect(Collectors.toList());
+        final Map<String, Integer> present = cache.getPresent(keys);
+        assertThat(present.size(), is(25_000));
+        assertThat(present.get("K30000"), is(30_000));
+        assertThat(cache.getPresent(Arrays.asList("K1", "K1", "X")), is(Collections.singletonMap("K1", 1)));
+    }
+
+    @Test
+    public void refreshAhead_readKey_shouldBeRefreshedBeforeNextFetchTime() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<Integer>> countingSource = key -> Optional.of(sourceCalls.incrementAndGet());
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .refreshAheadPeriod(Duration.ofMinutes(1))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(countingSource, parameters)) {
+            cache.put("HOT", 0);
+            cache.put("COLD", 0);
+            assertThat(cache.get("HOT"), is(Optional.of(0)));
+
+            ticker.advance(REFETCH_ASYNC_PERIOD.minusMinutes(2));
+            cache.refreshAhead();
+            assertThat(sourceCalls.get(), is(0));
+
+            ticker.advance(Duration.ofMinutes(1));
+            cache.refreshAhead();
+            assertThat(sourceCalls.get(), is(1));
+            assertThat(cache.getIfPresent("HOT"), is(Optional.of(1)));
+            assertThat(cache.getIfPresent("COLD"), is(Optional.of(0)));
+
+            ticker.advance(Duration.ofMinutes(1));
+            assertThat(cache.getPresentFresh(Collections.singleton("HOT")), is(Collections.singletonMap("HOT", 1)));
+        }
+    }
+
+    @Test
+    public void get_negativeCaching_shouldNotCallSourceAgainUntilNegativeCachePeriodPassed() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<Integer>> emptySource = key -> {
+            sourceCalls.incrementAndGet();
+            return Optional.empty();
+        };
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().ticker(ticker).negativeCaching(Duration.ofMinutes(1), 10).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(emptySource, parameters);
+
+        assertThat(cache.get("A"), is(Optional.empty()));
+        assertThat(cache.get("A"), is(Optional.empty()));
+        assertThat(cache.getIfPresent("A"), is(Optional.empty()));
+        assertThat(cache.getDatedIfPresent("A"), is(Optional.empty()));
+        assertThat(sourceCalls.get(), is(1));
+
+        ticker.advance(Duration.ofMinutes(1));
+        assertThat(cache.get("A"), is(Optional.empty()));
+        assertThat(sourceCalls.get(), is(2));
+    }
+
+    @Test
+    public void get_manyAbsentKeys_shouldNotEvictValues() {
+        final Function<String, Optional<Integer>> emptySource = key -> Optional.empty();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().maximumSize(10).negativeCaching(Duration.ofMinutes(1), 5).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(emptySource, parameters);
+        for (int i = 0; i < 10; i++) {
+            cache.put("V" + i, i);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(cache.get("NONE" + i), is(Optional.empty()));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(cache.getIfPresent("V" + i), is(Optional.of(i)));
+        }
+        assertThat(IntStream.range(0, 100).filter(i -> cache.getEntry("NONE" + i) != null).count(), is(5L));
+    }
+
+    @Test
+    public void get_repeatedFailures_shouldBackOffExponentiallyUpToMaximum() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .maximumBackoffPeriod(REFETCH_ASYNC_PERIOD.multipliedBy(4))
+                .build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters);
+        cache.put("E1", 1);
+
+        for (final long multiplier : new long[]{1, 2, 4, 4}) {
+            final CacheEntry<Integer> entry = cache.getEntry("E1");
+            ticker.advance(Duration.ofNanos(entry.getNextFetchAt() - ticker.read()));
+            assertThat(cache.get("E1"), is(Optional.of(1)));
+            final long backoff = cache.getEntry("E1").getNextFetchAt() - ticker.read();
+            final long maximum = REFETCH_ASYNC_PERIOD.multipliedBy(multiplier).toNanos();
+            assertThat(backoff, Matchers.greaterThanOrEqualTo(maximum / 2));
+            assertThat(backoff, Matchers.lessThanOrEqualTo(maximum));
+        }
+    }
+
+    @Test
+    public void get_circuitBreakerOpen_shouldReturnStaleWithoutCallingSourceAndProbeOncePerOpenPeriod() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final Function<String, Optional<Integer>> failingSource = key -> {
+            sourceCalls.incrementAndGet();
+            if (failing.get()) {
+                throw new IllegalStateException("down");
+            }
+            return Optional.of(2);
+        };
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .circuitBreaker(2, Duration.ofMinutes(1))
+                .build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(failingSource, parameters);
+        for (int i = 0; i < 5; i++) {
+            cache.put("K" + i, 1);
+        }
+        ticker.advance(REFETCH_SYNC_PERIOD);
+
+        assertThat(cache.get("K0"), is(Optional.of(1)));
+        assertThat(cache.get("K1"), is(Optional.of(1)));
+        assertThat(sourceCalls.get(), is(2));
+        assertThat(cache.get("K2"), is(Optional.of(1)));
+        assertThat(sourceCalls.get(), is(2));
+
+        ticker.advance(Duration.ofMinutes(1));
+        assertThat(cache.get("K2"), is(Optional.of(1)));
+        assertThat(cache.get("K3"), is(Optional.of(1)));
+        assertThat(sourceCalls.get(), is(3));
+
+        failing.set(false);
+        ticker.advance(Duration.ofMinutes(1));
+        assertThat(cache.get("K3"), is(Optional.of(2)));
+        assertThat(cache.get("K4"), is(Optional.of(2)));
+        assertThat(sourceCalls.get(), is(5));
+    }
+
+    @Test(timeout = 5000)
+    public void get_hangingSourceWithStaleValue_shouldReturnStaleAfterTimeoutAndUpdateInBackground() throws InterruptedException {
+        final FakeTicker ticker = new FakeTicker();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Function<String, Optional<Integer>> hangingSource = key -> {
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return Optional.of(2);
+        };
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().ticker(ticker).fetchTimeoutPeriod(Duration.ofMillis(50)).build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(hangingSource, parameters)) {
+            cache.put("A", 1);
+            ticker.advance(REFETCH_SYNC_PERIOD);
+
+            assertThat(cache.get("A"), is(Optional.of(1)));
+            assertThat(cache.get("A"), is(Optional.of(1)));
+
+            release.countDown();
+            while (!cache.getIfPresent("A").equals(Optional.of(2))) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void get_syncFetchQueuedBehindAsyncRefresh_shouldNotDeadlockTheRefreshExecutor() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final ExecutorService executor = RefreshExecutors.bounded(1, 10);
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(executor)
+                .fetchTimeoutPeriod(Duration.ofMillis(50))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> Optional.of(sourceCalls.incrementAndGet()), parameters)) {
+            cache.put("A", 0);
+            executor.execute(() -> {
+                try {
+                    busy.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            ticker.advance(REFETCH_ASYNC_PERIOD);
+            assertThat(cache.get("A"), is(Optional.of(0)));
+            ticker.advance(REFETCH_SYNC_PERIOD);
+            assertThat(cache.get("A"), is(Optional.of(0)));
+
+            busy.countDown();
+            while (!cache.getIfPresent("A").equals(Optional.of(1))) {
+                Thread.sleep(1);
+            }
+            assertThat(executor.submit(() -> true).get(5, TimeUnit.SECONDS), is(true));
+            assertThat(sourceCalls.get(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void get_syncFetchRejectedBySaturatedExecutor_shouldReturnStaleWithoutCallingSource() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final CountDownLatch hung = new CountDownLatch(1);
+        final ExecutorService executor = RefreshExecutors.bounded(1, 1);
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(executor)
+                .fetchTimeoutPeriod(Duration.ofMillis(50))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            sourceCalls.incrementAndGet();
+            try {
+                hung.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of(1);
+        }, parameters)) {
+            cache.put("A", 0);
+            cache.put("B", 0);
+            cache.put("C", 0);
+            ticker.advance(REFETCH_SYNC_PERIOD);
+            assertThat(cache.get("A"), is(Optional.of(0)));
+            assertThat(cache.get("B"), is(Optional.of(0)));
+
+            final long start = System.nanoTime();
+            assertThat(cache.get("C"), is(Optional.of(0)));
+            assertThat(System.nanoTime() - start, Matchers.lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+            assertThat(sourceCalls.get(), is(1));
+        } finally {
+            hung.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void get_circuitOpenAndPastSyncFetchTime_shouldReturnStaleWithoutWaitingForExecutor() throws InterruptedException {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final CountDownLatch busy = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(executor)
+                .fetchTimeoutPeriod(Duration.ofSeconds(5))
+                .circuitBreaker(1, Duration.ofMinutes(1))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            sourceCalls.incrementAndGet();
+            throw new IllegalStateException("Source down");
+        }, parameters)) {
+            cache.put("A", 0);
+            cache.put("B", 0);
+            ticker.advance(REFETCH_SYNC_PERIOD);
+            assertThat(cache.get("A"), is(Optional.of(0)));
+            executor.execute(() -> {
+                try {
+                    busy.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            final long start = System.nanoTime();
+            assertThat(cache.get("B"), is(Optional.of(0)));
+            assertThat(System.nanoTime() - start, Matchers.lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+            assertThat(sourceCalls.get(), is(1));
+        } finally {
+            busy.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void get_sourceThrowsErrorOnSyncFetch_shouldReturnStaleAndFetchAgain() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(executor)
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            if (sourceCalls.incrementAndGet() == 1) {
+                throw new AssertionError("Source Error");
+            }
+            return Optional.of(2);
+        }, parameters)) {
+            cache.put("A", 1);
+            ticker.advance(REFETCH_SYNC_PERIOD);
+
+            assertThat(cache.get("A"), is(Optional.of(1)));
+            assertThat(cache.get("A"), is(Optional.of(2)));
+            assertThat(sourceCalls.get(), is(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void get_slowColdMiss_shouldHedgeAndCancelTheSlowCall() throws InterruptedException {
+        final AtomicInteger slowCalls = new AtomicInteger();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final Function<String, Optional<Integer>> slowSource = key -> {
+            if (key.equals("SLOW") && (slowCalls.incrementAndGet() == 1)) {
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return Optional.of(1);
+            }
+            return Optional.of(2);
+        };
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().refreshExecutor(executor).hedging(0.9, 0.5).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(slowSource, parameters);
+        for (int i = 0; i < HedgedSource.MINIMUM_SAMPLES; i++) {
+            cache.get("FAST" + i);
+        }
+
+        assertThat(cache.get("SLOW"), is(Optional.of(2)));
+        assertThat(slowCalls.get(), is(2));
+        assertThat(interrupted.await(1, TimeUnit.SECONDS), is(true));
+        executor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void get_hedgingWithBusyRefreshExecutor_shouldCallSourceOnCallingThread() {
+        final List<Thread> callers = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch busy = new CountDownLatch(1);
+        final ExecutorService executor = RefreshExecutors.bounded(1, 10);
+        executor.execute(() -> {
+            try {
+                busy.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().refreshExecutor(executor).hedging(0.9, 0.5).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            callers.add(Thread.currentThread());
+            return Optional.of(key.length());
+        }, parameters);
+        for (int i = 0; i < HedgedSource.MINIMUM_SAMPLES; i++) {
+            cache.get("FAST" + i);
+        }
+
+        assertThat(cache.get("COLD"), is(Optional.of(4)));
+        assertThat(callers.stream().allMatch(Thread.currentThread()::equals), is(true));
+        assertThat(Thread.currentThread().isInterrupted(), is(false));
+        busy.countDown();
+        executor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void get_hedgeBudgetUsed_shouldWaitForTheSlowCall() {
+        final AtomicInteger slowCalls = new AtomicInteger();
+        final Function<String, Optional<Integer>> slowSource = key -> {
+            if (key.equals("SLOW")) {
+                slowCalls.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return Optional.of(2);
+        };
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().refreshExecutor(executor).hedging(0.9, 0).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(slowSource, parameters);
+        for (int i = 0; i < HedgedSource.MINIMUM_SAMPLES; i++) {
+            cache.get("FAST" + i);
+        }
+
+        assertThat(cache.get("SLOW"), is(Optional.of(2)));
+        assertThat(slowCalls.get(), is(1));
+        executor.shutdown();
+    }
+
+    @Test
+    public void stats_mixedGets_shouldCountEachKindOfGet() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder().ticker(ticker).refreshExecutor(Runnable::run).build();
+        final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters);
+
+        cache.get("A");
+        cache.get("A");
+        ticker.advance(REFETCH_ASYNC_PERIOD);
+        cache.get("A");
+        ticker.advance(REFETCH_SYNC_PERIOD);
+        cache.get("A");
+        cache.getIfPresent("A");
+        try {
+            cache.get("ERROR");
+        } catch (final SupplierFailedException e) {
+            // expected
+        }
+
+        final CacheStats stats = cache.stats();
+        assertThat(stats.getMissCount(), is(2L));
+        assertThat(stats.getFreshHitCount(), is(1L));
+        assertThat(stats.getStaleHitCount(), is(1L));
+        assertThat(stats.getSyncRefreshCount(), is(1L));
+        assertThat(stats.getRequestCount(), is(5L));
+        assertThat(stats.getLoadCount(), is(3L));
+        assertThat(stats.getFailureCount(), is(1L));
+        assertThat(stats.getLoadLatency(0.99).isPresent(), is(true));
+    }
+
+    @Test
+    public void get_offHeap_shouldRefreshAsyncThenSyncAsOnHeap() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<String>> countingSource = key -> Optional.of(key + sourceCalls.incrementAndGet());
+        final CacheParameters<String, String> parameters = getStringParameterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .offHeap(Codec.utf8(), 1 << 20)
+                .build();
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(countingSource, parameters);
+
+        assertThat(cache.get("A"), is(Optional.of("A1")));
+        assertThat(cache.getEntry("A") instanceof OffHeapEntry, is(true));
+        ticker.advance(REFETCH_ASYNC_PERIOD);
+        assertThat(cache.get("A"), is(Optional.of("A1")));
+        assertThat(cache.get("A"), is(Optional.of("A2")));
+        ticker.advance(REFETCH_SYNC_PERIOD);
+        assertThat(cache.get("A"), is(Optional.of("A3")));
+        assertThat(cache.getDatedIfPresent("A").map(Dated::getSubject), is(Optional.of("A3")));
+    }
+
+    @Test
+    public void put_offHeapFull_shouldKeepValuesOnHeap() {
+        final CacheParameters<String, String> parameters = getStringParameterBuilder().offHeap(Codec.utf8(), 64).build();
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(key -> Optional.empty(), parameters);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("K" + i, "value " + i);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(cache.getIfPresent("K" + i), is(Optional.of("value " + i)));
+        }
+    }
+
+    @Test
+    public void get_offHeapRefreshFails_shouldKeepChunkWithoutDecoding() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger decodes = new AtomicInteger();
+        final CacheParameters<String, String> parameters = getStringParameterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .offHeap(countingCodec(decodes), 1 << 16)
+                .build();
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(key -> {
+            throw new IllegalStateException("Source down");
+        }, parameters);
+        cache.put("A", "value");
+        final long address = ((OffHeapEntry<String>) cache.getEntry("A")).getAddress();
+        ticker.advance(REFETCH_ASYNC_PERIOD);
+
+        assertThat(cache.get("A"), is(Optional.of("value")));
+        assertThat(decodes.get(), is(1));
+        final CacheEntry<String> failed = cache.getEntry("A");
+        assertThat(failed.getFailures(), is(1));
+        assertThat(((OffHeapEntry<String>) failed).getAddress(), is(address));
+        assertThat(failed.getValue(), is("value"));
+    }
+
+    private static Codec<String> countingCodec(final AtomicInteger decodes) {
+        return new Codec<String>() {
+            @Override
+            public byte[] encode(final String value) {
+                return Codec.utf8().encode(value);
+            }
+
+            @Override
+            public String decode(final ByteBuffer bytes) {
+                decodes.incrementAndGet();
+                return Codec.utf8().decode(bytes);
+            }
+        };
+    }
+
+    @Test
+    public void put_offHeapChunkReused_shouldNotDecodeReplacedValueAndReadersShouldFindTheNewOne() {
+        final AtomicInteger decodes = new AtomicInteger();
+        final CacheParameters<String, String> parameters = getStringParameterBuilder().offHeap(countingCodec(decodes), 1 << 16).build();
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(key -> Optional.empty(), parameters);
+        cache.put("A", "old");
+        final CacheEntry<String> replaced = cache.getEntry("A");
+
+        cache.put("A", "new");
+        cache.put("A", "newer");
+
+        assertThat(decodes.get(), is(0));
+        assertThat(replaced.getValue(), is(nullValue()));
+        assertThat(cache.valueOf("A", replaced), is("newer"));
+    }
+
+    @Test(timeout = 10000)
+    public void getIfPresent_offHeapConcurrentReplace_shouldNeverReturnAnotherKeysValue() throws InterruptedException, ExecutionException {
+        final CacheParameters<String, String> parameters = getStringParameterBuilder().offHeap(Codec.utf8(), 1 << 16).build();
+        final FaultTolerantCache<String, String> cache = FaultTolerantCache.of(key -> Optional.empty(), parameters);
+        final int keys = 8;
+        for (int i = 0; i < keys; i++) {
+            cache.put("K" + i, "K" + i + ":0");
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<?>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> {
+            for (int n = 1; n < 20_000; n++) {
+                cache.put("K" + (n % keys), "K" + (n % keys) + ":" + n);
+            }
+        }));
+        for (int t = 0; t < 3; t++) {
+            futures.add(executor.submit(() -> {
+                for (int n = 0; n < 20_000; n++) {
+                    final String key = "K" + (n % keys);
+                    assertThat(cache.getIfPresent(key).map(value -> value.startsWith(key + ":")), is(Optional.of(true)));
+                }
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void get_tiered_shouldFindEvictedValuesInSecondTierAndRefreshThemWhenStale() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<String>> countingSource = key -> Optional.of(key + sourceCalls.incrementAndGet());
+        final CacheParameters<String, String> parameters = getStringParameterBuilder().ticker(ticker).refreshExecutor(Runnable::run).maximumSize(2).build();
+        final CacheParameters<String, String> secondTierParameters = getStringParameterBuilder().maximumSize(100).offHeap(Codec.utf8(), 1 << 20).build();
+        try (FaultTolerantCache<String, String> cache = FaultTolerantCache.tiered(countingSource, parameters, secondTierParameters)) {
+            for (int i = 0; i < 10; i++) {
+                assertThat(cache.get("K" + i), is(Optional.of("K" + i + (i + 1))));
+            }
+
+            for (int i = 0; i < 10; i++) {
+                assertThat(cache.get("K" + i), is(Optional.of("K" + i + (i + 1))));
+            }
+            assertThat(sourceCalls.get(), is(10));
+
+            ticker.advance(REFETCH_ASYNC_PERIOD);
+            assertThat(cache.get("K0"), is(Optional.of("K01")));
+            assertThat(sourceCalls.get(), is(11));
+            assertThat(cache.get("K0"), is(Optional.of("K011")));
+        }
+    }
+
+    @Test
+    public void getIfPresent_tiered_shouldNotMoveSecondTierValuesToFirstTier() {
+        final CacheParameters<String, String> parameters = getStringParameterBuilder().refreshExecutor(Runnable::run).maximumSize(2).build();
+        final CacheParameters<String, String> secondTierParameters = getStringParameterBuilder().maximumSize(100).build();
+        try (FaultTolerantCache<String, String> cache = FaultTolerantCache.tiered(key -> Optional.of(key), parameters, secondTierParameters)) {
+            final List<String> keys = IntStream.range(0, 10).mapToObj(i -> "K" + i).collect(Collectors.toList());
+            keys.forEach(key -> cache.put(key, key));
+            final Set<String> firstTier = firstTierKeys(cache);
+            final List<String> secondTier = keys.stream().filter(key -> !firstTier.contains(key)).collect(Collectors.toList());
+
+            secondTier.forEach(key -> assertThat(cache.getIfPresent(key), is(Optional.of(key))));
+            assertThat(cache.getPresent(secondTier).size(), is(secondTier.size()));
+            assertThat(firstTierKeys(cache), is(firstTier));
+
+            assertThat(cache.get(secondTier.get(0)), is(Optional.of(secondTier.get(0))));
+            assertThat(firstTierKeys(cache).contains(secondTier.get(0)), is(true));
+        }
+    }
+
+    private static Set<String> firstTierKeys(final FaultTolerantCache<String, String> cache) {
+        final Set<String> keys = new HashSet<>();
+        cache.forEachEntry((key, entry) -> keys.add(key));
+        return keys;
+    }
+
+    @Test
+    public void sweep_afterMaximumStaleness_shouldRemoveEntriesNotFetchedSince() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .maximumSize(100)
+                .maximumStaleness(Duration.ofHours(1))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters)) {
+            cache.put("UNREAD", 1);
+            cache.put("READ", 1);
+            ticker.advance(Duration.ofMinutes(50));
+            assertThat(cache.get("READ"), is(Optional.of(4)));
+
+            ticker.advance(Duration.ofMinutes(11));
+            cache.sweep();
+
+            assertThat(cache.getIfPresent("UNREAD"), is(Optional.empty()));
+            assertThat(cache.getIfPresent("READ"), is(Optional.of(4)));
+        }
+    }
+
+    @Test
+    public void adaptiveFetchPeriod_valueUnchanged_shouldLengthenPeriodUpToMaximum() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger value = new AtomicInteger(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .syncFetchPeriod(Duration.ofHours(1))
+                .adaptiveFetchPeriod(Duration.ofMinutes(40))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            calls.incrementAndGet();
+            return Optional.of(value.get());
+        }, parameters)) {
+            cache.get("A");
+            final List<Long> periods = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final CacheEntry<Integer> entry = cache.getEntry("A");
+                periods.add(Duration.ofNanos(entry.getNextFetchAt() - entry.getFetchedAt()).toMinutes());
+                ticker.advance(Duration.ofNanos(entry.getNextFetchAt() - ticker.read()));
+                cache.get("A");
+            }
+            assertThat(periods, is(Arrays.asList(5L, 10L, 20L, 40L)));
+
+            value.set(2);
+            ticker.advance(Duration.ofMinutes(40));
+            assertThat(cache.get("A"), is(Optional.of(1)));
+            final CacheEntry<Integer> changed = cache.getEntry("A");
+            assertThat(Duration.ofNanos(changed.getNextFetchAt() - changed.getFetchedAt()).toMinutes(), is(20L));
+            assertThat(cache.get("A"), is(Optional.of(2)));
+            assertThat(calls.get(), is(6));
+        }
+    }
+
+    @Test
+    public void adaptiveFetchPeriod_withEquality_shouldCompareUsingIt() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger value = new AtomicInteger(1);
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .adaptiveFetchPeriod(Duration.ofMinutes(40), HashcodeEquals.<Integer>of(i -> i % 2))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> Optional.of(value.getAndAdd(2)), parameters)) {
+            cache.get("A");
+            ticker.advance(REFETCH_ASYNC_PERIOD);
+            cache.get("A");
+
+            final CacheEntry<Integer> entry = cache.getEntry("A");
+            assertThat(entry.getValue(), is(3));
+            assertThat(Duration.ofNanos(entry.getNextFetchAt() - entry.getFetchedAt()).toMinutes(), is(10L));
+        }
+    }
+
+    @Test
+    public void adaptiveFetchPeriod_withJitter_shouldAdaptThePeriodBeforeJitter() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .syncFetchPeriod(Duration.ofHours(1))
+                .adaptiveFetchPeriod(Duration.ofMinutes(40))
+                .fetchJitter(0.5)
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> Optional.of(1), parameters)) {
+            cache.get("A");
+            final List<Long> periods = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final CacheEntry<Integer> entry = cache.getEntry("A");
+                periods.add(Duration.ofNanos(entry.getFetchNanos()).toMinutes());
+                assertThat(entry.getNextFetchAt() - entry.getFetchedAt(), Matchers.greaterThanOrEqualTo(entry.getFetchNanos() / 2));
+                ticker.advance(Duration.ofNanos(entry.getNextFetchAt() - ticker.read()));
+                cache.get("A");
+            }
+            assertThat(periods, is(Arrays.asList(5L, 10L, 20L, 40L)));
+        }
+    }
+
+    @Test
+    public void fetchJitter_entriesFetchedTogether_shouldSpreadRefreshes() {
+        final int[] withoutJitter = refreshesPerTenSeconds(0);
+        final int[] withJitter = refreshesPerTenSeconds(0.5);
+
+        assertThat(Arrays.stream(withoutJitter).max().getAsInt(), is(1000));
+        assertThat(Arrays.stream(withJitter).sum(), is(1000));
+        assertThat(Arrays.stream(withJitter).max().getAsInt(), Matchers.lessThan(200));
+        assertThat((int) Arrays.stream(withJitter).filter(calls -> calls > 0).count(), Matchers.greaterThanOrEqualTo(10));
+    }
+
+    /**
+     * Loads 1000 keys at once and reads all of them every ten seconds until each has been refreshed once.
+     */
+    private int[] refreshesPerTenSeconds(final double fetchJitter) {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger calls = new AtomicInteger();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .fetchJitter(fetchJitter)
+                .build();
+        final int steps = (int) (REFETCH_ASYNC_PERIOD.getSeconds() / 10);
+        final int[] refreshes = new int[steps];
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            calls.incrementAndGet();
+            return Optional.of(key.length());
+        }, parameters)) {
+            final List<String> keys = IntStream.range(0, 1000).mapToObj(i -> "K" + i).collect(Collectors.toList());
+            keys.forEach(cache::get);
+            for (int step = 0; step < steps; step++) {
+                ticker.advance(Duration.ofSeconds(10));
+                final int before = calls.get();
+                keys.forEach(cache::get);
+                refreshes[step] = calls.get() - before;
+            }
+        }
+        return refreshes;
+    }
+
+    @Test
+    public void expiry_perEntryPeriods_shouldRefreshEachKeyOnItsOwnDeadline() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger calls = new AtomicInteger();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .expiry(Expiry.<String, Integer>of(
+                        (key, value) -> key.startsWith("SHORT") ? Duration.ofMinutes(1) : Duration.ofHours(1),
+                        (key, value) -> key.startsWith("SHORT") ? Duration.ofMinutes(2) : Duration.ofHours(2)))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(key -> {
+            calls.incrementAndGet();
+            return Optional.of(key.length());
+        }, parameters)) {
+            cache.get("SHORT");
+            cache.get("LONG");
+
+            ticker.advance(Duration.ofSeconds(90));
+            cache.get("SHORT");
+            cache.get("LONG");
+            assertThat(calls.get(), is(3));
+
+            final CacheEntry<Integer> entry = cache.getEntry("LONG");
+            ticker.advance(Duration.ofMinutes(90));
+            assertThat(cache.needsSyncFetch(entry, ticker.read()), is(false));
+            assertThat(cache.needsSyncFetch(cache.getEntry("SHORT"), ticker.read()), is(true));
+        }
+    }
+
+    @Test
+    public void sweep_withExpiry_shouldKeepEntriesUntilTheirSyncFetchTime() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheParameters<String, Integer> parameters = getParmaeterBuilder()
+                .ticker(ticker)
+                .refreshExecutor(Runnable::run)
+                .maximumSize(100)
+                .maximumStaleness(Duration.ofHours(1))
+                .expiry(Expiry.<String, Integer>of(
+                        (key, value) -> REFETCH_ASYNC_PERIOD,
+                        (key, value) -> key.startsWith("LONG") ? Duration.ofHours(3) : REFETCH_SYNC_PERIOD))
+                .build();
+        try (FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, parameters)) {
+            cache.put("SHORT", 1);
+            cache.put("LONG", 1);
+
+            ticker.advance(Duration.ofMinutes(61));
+            cache.sweep();
+
+            assertThat(cache.getIfPresent("SHORT"), is(Optional.empty()));
+            assertThat(cache.getIfPresent("LONG"), is(Optional.of(1)));
+        }
+    }
+
     private FaultTolerantCache<String, Integer> setupCacheMixedData(final TimeSupplier timeSupplier) {
         final FaultTolerantCache<String, Integer> cache = FaultTolerantCache.of(source, CACHE_PARAMETERS, timeSupplier);
         cache.put("A", 2);
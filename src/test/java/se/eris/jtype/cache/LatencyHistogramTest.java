@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentile_empty_returnMinusOne() {
+        assertThat(new LatencyHistogram().percentile(0.99), is(-1L));
+    }
+
+    @Test
+    public void percentile_uniformLatencies_returnWithinOneSubBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertThat(histogram.count(), is(1000L));
+        assertThat(histogram.percentile(0.5), Matchers.greaterThanOrEqualTo(500_000L));
+        assertThat(histogram.percentile(0.5), Matchers.lessThanOrEqualTo(500_000L + (500_000L / 8)));
+        assertThat(histogram.percentile(1), Matchers.greaterThanOrEqualTo(1_000_000L));
+    }
+
+    @Test
+    public void highestValueIn_everyBucket_containsTheValuesOfTheBucket() {
+        for (final long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE}) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertThat(LatencyHistogram.highestValueIn(index), Matchers.greaterThanOrEqualTo(value));
+            if (index > 0) {
+                assertThat(LatencyHistogram.highestValueIn(index - 1), Matchers.lessThan(value));
+            }
+        }
+    }
+
+}
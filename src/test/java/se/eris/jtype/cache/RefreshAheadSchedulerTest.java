@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RefreshAheadSchedulerTest {
+
+    private static final long MINUTE = Duration.ofMinutes(1).toNanos();
+
+    @Test
+    public void schedule_sameKeyAgain_shouldKeepOneSchedule() {
+        final RefreshAheadScheduler<String> scheduler = new RefreshAheadScheduler<>(MINUTE, 0);
+        for (int i = 1; i <= 5; i++) {
+            scheduler.schedule("A", 10 * MINUTE + i);
+        }
+
+        assertThat(scheduler.size(), is(1));
+        assertThat(scheduler.pollDue(8 * MINUTE), is(Collections.<String>emptyList()));
+        assertThat(scheduler.pollDue(9 * MINUTE + 5), is(Collections.singletonList("A")));
+        assertThat(scheduler.size(), is(0));
+    }
+
+    @Test
+    public void remove_scheduledKey_shouldNotBeDue() {
+        final RefreshAheadScheduler<String> scheduler = new RefreshAheadScheduler<>(MINUTE, 0);
+        scheduler.schedule("A", 10 * MINUTE);
+        scheduler.remove("A");
+
+        assertThat(scheduler.size(), is(0));
+        assertThat(scheduler.pollDue(20 * MINUTE), is(Collections.<String>emptyList()));
+    }
+
+}
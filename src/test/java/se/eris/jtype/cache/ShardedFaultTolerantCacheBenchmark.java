@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Throughput of reads and writes of a {@link ShardedFaultTolerantCache} against a single
+ * {@link FaultTolerantCache}, from 1 to 96 threads. One segment is the unsharded cache itself.
+ *
+ * Run {@link #main(String[])} to measure every thread count, or JMH directly with {@code -t} for
+ * one of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ShardedFaultTolerantCacheBenchmark {
+
+    private static final int KEYS = 1 << 16;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64, 96};
+
+    @Param({"1", "16", "64"})
+    public int segments;
+
+    private String[] keys;
+    private Function<String, Optional<Integer>> get;
+    private BiConsumer<String, Integer> put;
+    private AutoCloseable cache;
+
+    @Setup
+    public void setUp() {
+        final CacheParameters<String, Integer> parameters = CacheParameters.Builder.<String, Integer>init()
+                .asyncFetchPeriod(Duration.ofHours(1))
+                .syncFetchPeriod(Duration.ofHours(2))
+                .refreshExecutor(Runnable::run)
+                .maximumSize(KEYS)
+                .build();
+        final Function<String, Optional<Integer>> source = key -> Optional.of(key.length());
+        if (segments == 1) {
+            final FaultTolerantCache<String, Integer> unsharded = FaultTolerantCache.of(source, parameters);
+            get = unsharded::get;
+            put = unsharded::put;
+            cache = unsharded;
+        } else {
+            final ShardedFaultTolerantCache<String, Integer> sharded = ShardedFaultTolerantCache.of(source, parameters, segments);
+            get = sharded::get;
+            put = sharded::put;
+            cache = sharded;
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "K" + i;
+            put.accept(keys[i], i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Benchmark
+    public Optional<Integer> get() {
+        return get.apply(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public void put() {
+        final int i = ThreadLocalRandom.current().nextInt(KEYS);
+        put.accept(keys[i], i);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        for (final int threads : THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(ShardedFaultTolerantCacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+
+}
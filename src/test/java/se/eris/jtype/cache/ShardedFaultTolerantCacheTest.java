@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ShardedFaultTolerantCacheTest {
+
+    private static final Function<String, Optional<Integer>> LENGTH_SOURCE = key -> Optional.of(key.length());
+
+    private static CacheParameters.Builder<String, Integer> getParameterBuilder() {
+        return CacheParameters.Builder.<String, Integer>init()
+                .asyncFetchPeriod(Duration.ofMinutes(5))
+                .syncFetchPeriod(Duration.ofMinutes(20))
+                .refreshExecutor(Runnable::run);
+    }
+
+    @Test
+    public void of_segments_shouldRoundUpToPowerOfTwo() {
+        try (ShardedFaultTolerantCache<String, Integer> cache = ShardedFaultTolerantCache.of(LENGTH_SOURCE, getParameterBuilder().build(), 3)) {
+            assertThat(cache.segmentCount(), is(4));
+        }
+    }
+
+    @Test
+    public void getAll_keysInManySegments_returnAllValuesAndSumStats() {
+        try (ShardedFaultTolerantCache<String, Integer> cache = ShardedFaultTolerantCache.of(LENGTH_SOURCE, getParameterBuilder().build(), 8)) {
+            cache.put("A", 10);
+            final List<String> keys = Arrays.asList("A", "BB", "CCC", "DDDD");
+
+            assertThat(cache.getAll(keys).get("A"), is(10));
+            assertThat(cache.getAll(keys).get("DDDD"), is(4));
+            assertThat(cache.getPresent(keys).size(), is(4));
+            assertThat(cache.stats().getMissCount(), is(3L));
+            assertThat(cache.stats().getFreshHitCount(), is(5L));
+        }
+    }
+
+    @Test
+    public void put_beyondMaximumSize_shouldEvictDownToAboutMaximumSize() {
+        try (ShardedFaultTolerantCache<String, Integer> cache = ShardedFaultTolerantCache.of(LENGTH_SOURCE, getParameterBuilder().maximumSize(64).build(), 4)) {
+            final List<String> keys = IntStream.range(0, 1000).mapToObj(i -> "K" + i).collect(Collectors.toList());
+            keys.forEach(key -> cache.put(key, 1));
+
+            assertThat(cache.getPresent(keys).size(), Matchers.lessThanOrEqualTo(64));
+        }
+    }
+
+    @Test
+    public void get_sourceFailing_shouldOpenOneCircuitBreakerForAllSegments() {
+        final FakeTicker ticker = new FakeTicker();
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<Integer>> failingSource = key -> {
+            sourceCalls.incrementAndGet();
+            throw new IllegalStateException("Source down");
+        };
+        final CacheParameters<String, Integer> parameters = getParameterBuilder()
+                .ticker(ticker)
+                .circuitBreaker(2, Duration.ofMinutes(1))
+                .build();
+        try (ShardedFaultTolerantCache<String, Integer> cache = ShardedFaultTolerantCache.of(failingSource, parameters, 16)) {
+            final List<String> keys = IntStream.range(0, 64).mapToObj(i -> "K" + i).collect(Collectors.toList());
+            keys.forEach(key -> cache.put(key, 1));
+            ticker.advance(Duration.ofMinutes(20));
+
+            keys.forEach(key -> assertThat(cache.get(key), is(Optional.of(1))));
+            assertThat(sourceCalls.get(), is(2));
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void get_manyThreads_shouldCallSourceOncePerKey() throws InterruptedException, ExecutionException {
+        final AtomicInteger sourceCalls = new AtomicInteger();
+        final Function<String, Optional<Integer>> countingSource = key -> {
+            sourceCalls.incrementAndGet();
+            return Optional.of(key.length());
+        };
+        final int threads = 16;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (ShardedFaultTolerantCache<String, Integer> cache = ShardedFaultTolerantCache.of(countingSource, getParameterBuilder().build(), threads)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        final String key = "K" + ((i + offset) % 1000);
+                        assertThat(cache.get(key), is(Optional.of(key.length())));
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(sourceCalls.get(), is(1000));
+    }
+
+}
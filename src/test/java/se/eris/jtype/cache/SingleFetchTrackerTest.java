@@ -18,31 +18,89 @@ package se.eris.jtype.cache;
 import org.junit.Test;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class SingleFetchTrackerTest {
     @Test
     public void mark() {
         final SingleFetchTracker<String> fetchTracker = new SingleFetchTracker<>(Duration.ofSeconds(10));
-        final LocalDateTime now = LocalDateTime.now();
+        final long now = System.nanoTime();
 
-        assertThat(fetchTracker.mark("key", now), is(true));
-        assertThat(fetchTracker.mark("key", now), is(false));
-        assertThat(fetchTracker.mark("key", now.plusSeconds(10)), is(true));
+        assertThat(fetchTracker.mark("key", now), is(notNullValue()));
+        assertThat(fetchTracker.mark("key", now), is(nullValue()));
+        assertThat(fetchTracker.mark("key", now + Duration.ofSeconds(10).toNanos()), is(notNullValue()));
     }
 
     @Test
     public void unmark() {
         final SingleFetchTracker<String> fetchTracker = new SingleFetchTracker<>(Duration.ofSeconds(10));
 
-        final LocalDateTime now = LocalDateTime.now();
-        fetchTracker.mark("key", now);
+        final long now = System.nanoTime();
+        final SingleFetchTracker.Mark mark = fetchTracker.mark("key", now);
 
-        assertThat(fetchTracker.unmark("key"), is(true));
-        assertThat(fetchTracker.unmark("key"), is(false));
+        assertThat(fetchTracker.unmark("key", mark), is(true));
+        assertThat(fetchTracker.unmark("key", mark), is(false));
+    }
+
+    @Test
+    public void unmark_timedOutMark_shouldNotUnmarkFetchThatTookOver() {
+        final SingleFetchTracker<String> fetchTracker = new SingleFetchTracker<>(Duration.ofSeconds(10));
+        final long now = System.nanoTime();
+        final SingleFetchTracker.Mark timedOut = fetchTracker.mark("key", now);
+        fetchTracker.mark("key", now + Duration.ofSeconds(10).toNanos());
+
+        assertThat(fetchTracker.unmark("key", timedOut), is(false));
+        assertThat(fetchTracker.mark("key", now + Duration.ofSeconds(11).toNanos()), is(nullValue()));
+    }
+
+    @Test(timeout = 10000)
+    public void mark_concurrently_shouldNeverMarkSameKeyTwice() throws InterruptedException {
+        final SingleFetchTracker<Integer> fetchTracker = new SingleFetchTracker<>(Duration.ofHours(1));
+        final long now = System.nanoTime();
+        final int keys = 4;
+        final AtomicIntegerArray fetching = new AtomicIntegerArray(keys);
+        final AtomicInteger fetches = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 100_000; i++) {
+                    final int key = i % keys;
+                    final SingleFetchTracker.Mark mark = fetchTracker.mark(key, now);
+                    if (mark != null) {
+                        if (fetching.incrementAndGet(key) > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        fetches.incrementAndGet();
+                        fetching.decrementAndGet(key);
+                        fetchTracker.unmark(key, mark);
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(9, TimeUnit.SECONDS), is(true));
+
+        assertThat(fetches.get() > 0, is(true));
+        assertThat(overlaps.get(), is(0));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SingleFlightLoaderTest {
+
+    @Test(timeout = 10000)
+    public void load_loaderThrowsError_shouldFailWaiters() throws InterruptedException {
+        final SingleFlightLoader<String, String> loader = new SingleFlightLoader<>();
+        final CountDownLatch leading = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(1);
+        final CompletableFuture<Throwable> leader = CompletableFuture.supplyAsync(() -> {
+            try {
+                loader.load("key", k -> {
+                    leading.countDown();
+                    await(joined);
+                    throw new AssertionError("failed");
+                });
+                return null;
+            } catch (final AssertionError e) {
+                return e;
+            }
+        });
+        leading.await();
+        final CompletableFuture<String> waiter = CompletableFuture.supplyAsync(() -> loader.load("key", k -> "other"));
+        Thread.sleep(100);
+        joined.countDown();
+
+        assertThat(leader.join() instanceof AssertionError, is(true));
+        assertThat(waiter.handle((value, e) -> e != null).join(), is(true));
+        assertThat(loader.load("key", k -> "loaded"), is("loaded"));
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2016 Olle Sundblad - olle@eris.se
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.eris.jtype.cache;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TimerWheelTest {
+
+    private static final long SECOND = Duration.ofSeconds(1).toNanos();
+
+    @Test
+    public void advance_someDue_returnOnlyDueKeys() {
+        final TimerWheel<String> wheel = new TimerWheel<>(0);
+        wheel.schedule("A", 5 * SECOND);
+        wheel.schedule("B", 10 * SECOND);
+        wheel.schedule("C", Duration.ofHours(2).toNanos());
+
+        assertThat(wheel.advance(4 * SECOND), is(Collections.<String>emptyList()));
+        assertThat(wheel.advance(6 * SECOND), is(Collections.singletonList("A")));
+        assertThat(wheel.advance(Duration.ofHours(1).toNanos()), is(Collections.singletonList("B")));
+        assertThat(wheel.size(), is(1));
+    }
+
+    @Test
+    public void advance_deadlinesOnAllLevels_expireAfterTheirDeadlineOnly() {
+        final TimerWheel<Long> wheel = new TimerWheel<>(0);
+        final long[] deadlines = {SECOND, Duration.ofMinutes(3).toNanos(), Duration.ofHours(5).toNanos(), Duration.ofDays(4).toNanos(), Duration.ofDays(400).toNanos()};
+        for (final long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+
+        final HashSet<Long> expired = new HashSet<>();
+        for (long now = 0; now <= Duration.ofDays(401).toNanos(); now += Duration.ofMinutes(1).toNanos()) {
+            for (final Long key : wheel.advance(now)) {
+                assertThat(key <= now, is(true));
+                assertThat(now - key < Duration.ofMinutes(1).toNanos() + (2 * SECOND), is(true));
+                expired.add(key);
+            }
+        }
+        assertThat(expired.size(), is(deadlines.length));
+    }
+
+    @Test
+    public void schedule_again_shouldMoveTheDeadline() {
+        final TimerWheel<String> wheel = new TimerWheel<>(0);
+        wheel.schedule("A", 5 * SECOND);
+        wheel.schedule("A", 50 * SECOND);
+
+        assertThat(wheel.advance(10 * SECOND), is(Collections.<String>emptyList()));
+        assertThat(wheel.advance(60 * SECOND), is(Collections.singletonList("A")));
+    }
+
+    @Test
+    public void remove_scheduled_shouldNotExpire() {
+        final TimerWheel<String> wheel = new TimerWheel<>(0);
+        wheel.schedule("A", 5 * SECOND);
+        wheel.schedule("B", 5 * SECOND);
+        wheel.remove("A");
+
+        assertThat(wheel.advance(10 * SECOND), is(Arrays.asList("B")));
+    }
+
+}